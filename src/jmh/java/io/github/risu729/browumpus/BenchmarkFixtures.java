@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linecorp.bot.client.LineBlobClient;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.model.profile.UserProfileResponse;
+import io.github.risu729.browumpus.util.FileUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import net.dv8tion.jda.api.JDA;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+// wires the listeners and senders without Spring, with the remote clients stubbed in-process
+@FieldDefaults(level = AccessLevel.PACKAGE, makeFinal = true)
+final class BenchmarkFixtures implements AutoCloseable {
+
+  static final String LINE_GROUP_ID = "C0123456789abcdef0123456789abcdef";
+  static final String DISCORD_CHANNEL_ID = "1100000000000000000";
+
+  @NotNull Path dir;
+  @NotNull LineListener lineListener;
+  @NotNull DiscordListener discordListener;
+  @NotNull LineSender lineSender;
+  @NotNull DiscordRequestBodies requestBodies;
+  @NotNull MessageOutbox outbox;
+  @NotNull MessageRelay relay;
+  @NotNull BridgeRoutes routes;
+
+  BenchmarkFixtures() throws IOException {
+    // created on startup by BrowumpusApplication#main
+    Files.createDirectories(BrowumpusApplication.TEMP_DIR);
+    dir = Files.createTempDirectory(BrowumpusApplication.TEMP_DIR, "benchmark");
+    var meterRegistry = new SimpleMeterRegistry();
+    var objectMapper = new ObjectMapper();
+    var properties = new BrowumpusProperties("localhost",
+        LINE_GROUP_ID + ":" + DISCORD_CHANNEL_ID,
+        dir.resolve("bridges.json"),
+        new BrowumpusProperties.Line("token", "secret"),
+        new BrowumpusProperties.Discord("token", "https://discord.com/api/v10/",
+        "wss://gateway.discord.gg/"));
+    var taskExecutors = new TaskExecutors(false);
+
+    var profile = CompletableFuture.completedFuture(UserProfileResponse.builder()
+        .displayName("LINE user")
+        .userId("U0123456789abcdef0123456789abcdef")
+        .pictureUrl(URI.create("https://profile.line-scdn.net/picture"))
+        .build());
+    var messagingClient = stub(LineMessagingClient.class, Map.of(
+        "getGroupMemberProfile", profile,
+        "getRoomMemberProfile", profile,
+        "getProfile", profile));
+
+    // not clustered, every route is local
+    var leases = new ClusterLeases(false, dir.resolve("cluster"), "http://localhost");
+    var spool = new AttachmentSpool(DataSize.ofKilobytes(256), DataSize.ofMegabytes(64),
+        DataSize.ofMegabytes(16), Duration.ofHours(1), 10_000, meterRegistry);
+    var attachmentFactory = new AttachmentFactory(stub(LineBlobClient.class, Map.of()),
+        spool,
+        new MediaLinks("https://localhost", "", "secret", leases),
+        new ThumbnailGenerator(240, DataSize.ofMegabytes(1), DataSize.ofMegabytes(8)));
+
+    lineSender = new LineSender(new LinePushBatcher(messagingClient, meterRegistry, Duration.ZERO));
+    requestBodies = new DiscordRequestBodies(objectMapper, DataSize.ofKilobytes(64),
+        DataSize.ofMegabytes(25), DataSize.ofMegabytes(8));
+    routes = new BridgeRoutes(properties, objectMapper);
+    var jda = stub(JDA.class, Map.of());
+    var startupTasks = new StartupTasks(taskExecutors, meterRegistry, true);
+    var ownership = new RouteOwnership(jda, routes, leases, startupTasks, Duration.ofSeconds(10));
+    var discordSender = new DiscordSender(new DiscordWebhookPool(jda, properties, routes,
+            ownership, startupTasks),
+        new DiscordWebhookDispatcher(requestBodies, meterRegistry, taskExecutors, 1, 16));
+    outbox = new MessageOutbox(dir.resolve("outbox"), DataSize.ofMegabytes(1),
+        Duration.ofSeconds(1), Duration.ofHours(1), 16, 1, Duration.ofSeconds(1),
+        Duration.ofSeconds(1), objectMapper, attachmentFactory, lineSender, discordSender,
+        meterRegistry);
+    relay = new MessageRelay(taskExecutors, meterRegistry, 1, 16,
+        MessageRelay.OverflowPolicy.BLOCK, Duration.ofSeconds(1), Duration.ofSeconds(1));
+    var metrics = new BridgeMetrics(meterRegistry);
+    var traces = new TraceRecorder(256, Optional.empty());
+
+    lineListener = new LineListener(messagingClient, outbox, relay, routes, ownership,
+        new LineProfileResolver(messagingClient, meterRegistry, 1000, Duration.ofHours(1),
+            Duration.ZERO),
+        attachmentFactory, metrics, traces, meterRegistry, 64, Duration.ofMinutes(1));
+    discordListener = new DiscordListener(routes, relay, outbox, attachmentFactory, metrics,
+        traces);
+  }
+
+  // answers by method name, and with null or zero otherwise
+  @Contract(pure = true)
+  static <T> @NotNull T stub(@NotNull Class<T> type, @NotNull Map<String, Object> answers) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+        new Class<?>[] {type},
+        (proxy, method, args) -> switch (method.getName()) {
+          case "toString" -> type.getSimpleName() + " stub";
+          case "hashCode" -> System.identityHashCode(proxy);
+          case "equals" -> proxy == args[0];
+          default -> {
+            if (answers.containsKey(method.getName())) {
+              yield answers.get(method.getName());
+            }
+            var returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+              yield false;
+            } else if (returnType == long.class) {
+              yield 0L;
+            } else if (returnType == int.class) {
+              yield 0;
+            }
+            yield null;
+          }
+        }));
+  }
+
+  @Override
+  public void close() throws Exception {
+    outbox.close();
+    relay.shutdown();
+    routes.close();
+    FileUtil.deleteQuietly(dir);
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.linecorp.bot.model.event.MessageEvent;
+import com.linecorp.bot.model.event.message.ContentProvider;
+import com.linecorp.bot.model.event.message.ImageMessageContent;
+import com.linecorp.bot.model.event.message.TextMessageContent;
+import com.linecorp.bot.model.event.message.VideoMessageContent;
+import com.linecorp.bot.model.event.source.GroupSource;
+import net.dv8tion.jda.api.entities.User;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// converts messages on the way from the listeners to the senders
+// attachments are spooled lazily, so downloads are not part of the conversion
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+
+  BenchmarkFixtures fixtures;
+  MessageEvent<?> lineText;
+  MessageEvent<?> lineImage;
+  MessageEvent<?> lineExternalVideo;
+  net.dv8tion.jda.api.entities.Message discordText;
+  net.dv8tion.jda.api.entities.Message discordAttachments;
+  Message imageMessage;
+  Message textMessage;
+  // spooled attachments, read from memory
+  Message attachmentsMessage;
+
+  @Setup
+  public void setUp() throws IOException {
+    fixtures = new BenchmarkFixtures();
+
+    var source = GroupSource.builder()
+        .groupId(BenchmarkFixtures.LINE_GROUP_ID)
+        .userId("U0123456789abcdef0123456789abcdef")
+        .build();
+    lineText = lineEvent(source, TextMessageContent.builder()
+        .id("100001")
+        .text("こんにちは、Discord!")
+        .build());
+    lineImage = lineEvent(source, ImageMessageContent.builder()
+        .id("100002")
+        .contentProvider(ContentProvider.builder().type("line").build())
+        .build());
+    lineExternalVideo = lineEvent(source, VideoMessageContent.builder()
+        .id("100003")
+        .contentProvider(ContentProvider.builder()
+            .type("external")
+            .originalContentUrl(URI.create("https://example.com/video.mp4"))
+            .previewImageUrl(URI.create("https://example.com/preview.jpg"))
+            .build())
+        .build());
+
+    var user = BenchmarkFixtures.stub(User.class, Map.of("getName", "discord-user",
+        "getEffectiveAvatarUrl", "https://cdn.discordapp.com/avatars/1/avatar.png"));
+    discordText = discordMessage("1200000000000000001", "Hello, LINE!", List.of(), user);
+    discordAttachments = discordMessage("1200000000000000002", "", List.of(
+        discordAttachment(1300000000000000001L, "photo.png"),
+        discordAttachment(1300000000000000002L, "clip.mp4"),
+        discordAttachment(1300000000000000003L, "notes.pdf")), user);
+
+    var author = new Message.Author("discord-user",
+        URI.create("https://cdn.discordapp.com/avatars/1/avatar.png"));
+    textMessage = new Message("Hello, LINE!", author);
+    imageMessage = new Message("look", List.of(new Message.Attachment("photo.png",
+        URI.create("https://localhost/media/discord%3A1/photo.png?s=signature"),
+        URI.create("https://localhost/media/discord%3A1%3Apreview/photo.jpg?s=signature"))),
+        author);
+    var photo = new byte[1 << 20];
+    var notes = new byte[64 << 10];
+    attachmentsMessage = new Message("look", List.of(
+        new Message.Attachment("photo.png", () -> new ByteArrayInputStream(photo)),
+        new Message.Attachment("notes.pdf", () -> new ByteArrayInputStream(notes))), author);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    fixtures.close();
+  }
+
+  @Benchmark
+  public Message lineListenerText() {
+    return fixtures.lineListener.convertToMessage(lineText);
+  }
+
+  @Benchmark
+  public Message lineListenerImage() {
+    return fixtures.lineListener.convertToMessage(lineImage);
+  }
+
+  @Benchmark
+  public Message lineListenerExternalVideo() {
+    return fixtures.lineListener.convertToMessage(lineExternalVideo);
+  }
+
+  @Benchmark
+  public Message discordListenerText() {
+    return fixtures.discordListener.convertToMessage(discordText);
+  }
+
+  @Benchmark
+  public Message discordListenerAttachments() {
+    return fixtures.discordListener.convertToMessage(discordAttachments);
+  }
+
+  @Benchmark
+  public List<com.linecorp.bot.model.message.Message> lineSenderImage() {
+    return fixtures.lineSender.convertToLineMessages(imageMessage);
+  }
+
+  // the webhook payload of a text message, written as it is sent
+  @Benchmark
+  public long discordRequestBodyText() throws IOException {
+    var buffer = new Buffer();
+    fixtures.requestBodies.create(textMessage).writeTo(buffer);
+    return buffer.size();
+  }
+
+  // the multipart payload of a message with attachments, streamed in chunks as it is sent
+  @Benchmark
+  public long discordRequestBodyAttachments() throws IOException {
+    var buffer = new Buffer();
+    fixtures.requestBodies.create(attachmentsMessage).writeTo(buffer);
+    return buffer.size();
+  }
+
+  private static MessageEvent<?> lineEvent(GroupSource source,
+      com.linecorp.bot.model.event.message.MessageContent content) {
+    return MessageEvent.builder()
+        .replyToken("reply-token")
+        .source(source)
+        .message(content)
+        .timestamp(Instant.EPOCH)
+        .webhookEventId("01H0000000000000000000" + content.getId())
+        .build();
+  }
+
+  private static net.dv8tion.jda.api.entities.Message discordMessage(String id, String content,
+      List<net.dv8tion.jda.api.entities.Message.Attachment> attachments, User author) {
+    return BenchmarkFixtures.stub(net.dv8tion.jda.api.entities.Message.class, Map.of(
+        "getId", id,
+        "getContentStripped", content,
+        "getAttachments", attachments,
+        "getAuthor", author));
+  }
+
+  private static net.dv8tion.jda.api.entities.Message.Attachment discordAttachment(long id,
+      String filename) {
+    var url = "https://cdn.discordapp.com/attachments/1/%d/%s".formatted(id, filename);
+    return new net.dv8tion.jda.api.entities.Message.Attachment(id,
+        url,
+        url.replace("cdn.discordapp.com", "media.discordapp.net"),
+        filename,
+        null,
+        null,
+        1 << 20,
+        1080,
+        1920,
+        false,
+        null,
+        0,
+        null);
+  }
+}
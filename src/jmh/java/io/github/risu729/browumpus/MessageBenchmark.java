@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import io.github.risu729.browumpus.util.FileUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// constructs messages, which copies the attachments and memoizes the author icon
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageBenchmark {
+
+  private static final byte[] ICON = new byte[1024];
+
+  @Param({"0", "1", "10"})
+  int attachmentCount;
+
+  List<Message.Attachment> attachments;
+  URI authorURI;
+  Supplier<InputStream> icon;
+
+  @Setup
+  public void setUp() {
+    attachments = new ArrayList<>();
+    for (var i = 0; i < attachmentCount; i++) {
+      attachments.add(new Message.Attachment("image-%d.png".formatted(i),
+          URI.create("https://localhost/media/discord%3A" + i + "/image.png")));
+    }
+    authorURI = URI.create("https://profile.line-scdn.net/picture");
+    icon = () -> new ByteArrayInputStream(ICON);
+  }
+
+  @Benchmark
+  public Message withURIAuthor() {
+    return new Message("hello", attachments, new Message.Author("user", authorURI));
+  }
+
+  @Benchmark
+  public Message withStreamAuthor() {
+    return new Message("hello", attachments, new Message.Author("user", icon));
+  }
+
+  @Benchmark
+  public String fileExtension() {
+    return FileUtil.getFileExtension("IMG_20231105_123456.jpeg");
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+// serves the parts of the LINE Messaging and Blob APIs and of Discord webhooks which the bridge
+// calls, delaying every response by the latency and rejecting the sends with 429 at the ratio
+// the time each marker arrives is recorded to measure the bridge latency
+// with a gateway, the Discord REST API which JDA calls to log in and to create the webhooks is
+// also served
+// the attachments of the Discord messages are served as the image from the Discord CDN, and the
+// URLs of the media sent to LINE are recorded for the media proxy to be fetched
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+final class ApiStandIns implements AutoCloseable {
+
+  // the text or the filename of every message sent by the load test contains a marker
+  static final Pattern MARKER = Pattern.compile("lt-(\\d+)");
+
+  private static final Pattern PROFILE_PATH = Pattern.compile(
+      "/v2/bot/(?:group|room)/[^/]+/member/([^/]+)");
+  private static final Pattern CHANNEL_WEBHOOKS_PATH = Pattern.compile(
+      "/channels/([^/]+)/webhooks");
+  private static final Pattern ORIGINAL_CONTENT_URL = Pattern.compile(
+      "\"originalContentUrl\":\"([^\"]+)\"");
+
+  @NotNull HttpServer server;
+  @NotNull ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  @NotNull Duration latency;
+  double rateLimitRatio;
+  byte @NotNull [] image = createImage();
+  // marker to System#nanoTime when it arrived
+  @NotNull Map<Long, Long> arrivals = new ConcurrentHashMap<>();
+  @NotNull Queue<URI> mediaURIs = new ConcurrentLinkedQueue<>();
+  @NotNull AtomicLong lineRateLimited = new AtomicLong();
+  @NotNull AtomicLong discordRateLimited = new AtomicLong();
+  @Nullable DiscordGatewayStandIn gateway;
+  @NotNull ObjectMapper objectMapper = new ObjectMapper();
+  // channel ID to the webhooks created by JDA
+  @NotNull Map<String, Map<String, Object>> webhooks = new ConcurrentHashMap<>();
+
+  ApiStandIns(@NotNull Duration latency, double rateLimitRatio) throws IOException {
+    this(latency, rateLimitRatio, null);
+  }
+
+  ApiStandIns(@NotNull Duration latency, double rateLimitRatio,
+      @Nullable DiscordGatewayStandIn gateway) throws IOException {
+    this.latency = latency;
+    this.rateLimitRatio = rateLimitRatio;
+    this.gateway = gateway;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/line/", this::handleLine);
+    server.createContext("/line-blob/", this::handleImage);
+    server.createContext("/discord/", this::handleDiscord);
+    server.createContext("/discord-cdn/", this::handleImage);
+    server.start();
+  }
+
+  @Contract(pure = true)
+  @NotNull String lineEndpoint() {
+    return baseURL() + "/line/";
+  }
+
+  @Contract(pure = true)
+  @NotNull String lineBlobEndpoint() {
+    return baseURL() + "/line-blob/";
+  }
+
+  @Contract(pure = true)
+  @NotNull String discordAPIBaseURL() {
+    return baseURL() + "/discord/api/v10/";
+  }
+
+  @Contract(pure = true)
+  @NotNull String discordWebhookURL(@NotNull String channelID) {
+    return baseURL() + "/discord/api/webhooks/" + channelID + "/token";
+  }
+
+  @Contract(pure = true)
+  @NotNull String discordAttachmentURL(@NotNull String filename) {
+    return baseURL() + "/discord-cdn/attachments/" + filename;
+  }
+
+  @Contract(pure = true)
+  byte @NotNull [] image() {
+    return image.clone();
+  }
+
+  @Contract(pure = true)
+  @NotNull Map<Long, Long> arrivals() {
+    return arrivals;
+  }
+
+  // of the images and the videos pushed to LINE
+  @Contract(pure = true)
+  @NotNull Queue<URI> mediaURIs() {
+    return mediaURIs;
+  }
+
+  // since the last call
+  long takeLineRateLimited() {
+    return lineRateLimited.getAndSet(0);
+  }
+
+  // since the last call
+  long takeDiscordRateLimited() {
+    return discordRateLimited.getAndSet(0);
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handleLine(@NotNull HttpExchange exchange) throws IOException {
+    try (exchange) {
+      var path = exchange.getRequestURI().getPath().substring("/line".length());
+      var body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+      delay();
+      if (path.equals("/v2/bot/channel/webhook/endpoint")) {
+        // the endpoint is set by LineListener on startup if it differs
+        respond(exchange, 200, """
+            {"endpoint":"https://localhost/webhook","active":true}""");
+      } else if (path.equals("/v2/bot/message/push")) {
+        if (isRateLimited()) {
+          lineRateLimited.incrementAndGet();
+          respond(exchange, 429, """
+              {"message":"The API rate limit has been exceeded. Try again later."}""");
+          return;
+        }
+        recordArrivals(body);
+        ORIGINAL_CONTENT_URL.matcher(body)
+            .results()
+            .forEach(result -> mediaURIs.add(URI.create(result.group(1))));
+        respond(exchange, 200, "{}");
+      } else if (PROFILE_PATH.matcher(path).matches()) {
+        var userID = PROFILE_PATH.matcher(path).replaceAll("$1");
+        respond(exchange, 200, """
+            {"displayName":"%s","userId":"%s","pictureUrl":"https://profile.line-scdn.net/%s"}"""
+            .formatted(userID, userID, userID));
+      } else {
+        log.warn("Unexpected LINE API call: {} {}", exchange.getRequestMethod(), path);
+        respond(exchange, 404, "{}");
+      }
+    }
+  }
+
+  private void handleImage(@NotNull HttpExchange exchange) throws IOException {
+    try (exchange) {
+      delay();
+      exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+      exchange.sendResponseHeaders(200, image.length);
+      exchange.getResponseBody().write(image);
+    }
+  }
+
+  private void handleDiscord(@NotNull HttpExchange exchange) throws IOException {
+    var path = exchange.getRequestURI().getPath().replaceFirst("^/discord/api(?:/v10)?", "");
+    if (!path.startsWith("/webhooks/")) {
+      handleDiscordAPI(exchange, path);
+      return;
+    }
+    try (exchange) {
+      // multipart bodies contain binary parts, which are kept as is by ISO-8859-1
+      var body = new String(exchange.getRequestBody().readAllBytes(),
+          StandardCharsets.ISO_8859_1);
+      delay();
+      if (isRateLimited()) {
+        discordRateLimited.incrementAndGet();
+        exchange.getResponseHeaders().add("Retry-After", "0.1");
+        exchange.getResponseHeaders().add("X-RateLimit-Global", "false");
+        respond(exchange, 429, """
+            {"message":"You are being rate limited.","retry_after":0.1,"global":false}""");
+        return;
+      }
+      recordArrivals(body);
+      respond(exchange, 204, null);
+    }
+  }
+
+  private void handleDiscordAPI(@NotNull HttpExchange exchange, @NotNull String path)
+      throws IOException {
+    try (exchange) {
+      exchange.getRequestBody().readAllBytes();
+      var method = exchange.getRequestMethod();
+      var channelWebhooks = CHANNEL_WEBHOOKS_PATH.matcher(path);
+      if (gateway == null) {
+        log.warn("Unexpected Discord API call without a gateway: {} {}", method, path);
+        respond(exchange, 404, "{}");
+      } else if (method.equals("GET") && path.equals("/users/@me")) {
+        respond(exchange, 200, objectMapper.writeValueAsString(gateway.botUser()));
+      } else if (channelWebhooks.matches()) {
+        var channelID = channelWebhooks.group(1);
+        if (method.equals("POST")) {
+          // executed through discordAPIBaseURL since the bridge rewrites the webhook URLs
+          webhooks.computeIfAbsent(channelID, unused -> Map.of("id", channelID,
+              "type", 1,
+              "name", "browumpus",
+              "token", "token",
+              "channel_id", channelID,
+              "guild_id", gateway.guildOf(channelID),
+              "application_id", DiscordGatewayStandIn.BOT_USER_ID,
+              "user", gateway.botUser()));
+          respond(exchange, 200, objectMapper.writeValueAsString(webhooks.get(channelID)));
+        } else {
+          respond(exchange, 200, objectMapper.writeValueAsString(
+              Optional.ofNullable(webhooks.get(channelID)).stream().toList()));
+        }
+      } else {
+        log.warn("Unexpected Discord API call: {} {}", method, path);
+        respond(exchange, 404, "{}");
+      }
+    }
+  }
+
+  private void recordArrivals(@NotNull String body) {
+    var now = System.nanoTime();
+    // a merged webhook execution or a multipart body may contain a marker more than once
+    MARKER.matcher(body)
+        .results()
+        .forEach(result -> arrivals.putIfAbsent(Long.parseLong(result.group(1)), now));
+  }
+
+  private void delay() {
+    try {
+      TimeUnit.NANOSECONDS.sleep(latency.toNanos());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean isRateLimited() {
+    return ThreadLocalRandom.current().nextDouble() < rateLimitRatio;
+  }
+
+  private @NotNull String baseURL() {
+    return "http://%s:%d".formatted(server.getAddress().getHostString(),
+        server.getAddress().getPort());
+  }
+
+  private static void respond(@NotNull HttpExchange exchange, int status, @Nullable String body)
+      throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    var bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+  // a photo sized image, so that the thumbnails are generated as in production
+  private static byte @NotNull [] createImage() {
+    var image = new BufferedImage(1280, 960, BufferedImage.TYPE_INT_RGB);
+    var graphics = image.createGraphics();
+    for (var y = 0; y < image.getHeight(); y += 40) {
+      graphics.setColor(new Color(y * 0x10101 % 0xFFFFFF));
+      graphics.fillRect(0, y, image.getWidth(), 40);
+    }
+    graphics.dispose();
+    var output = new ByteArrayOutputStream();
+    try {
+      ImageIO.write(image, "jpg", output);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return output.toByteArray();
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.base.Splitter;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.boot.convert.DurationStyle;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// starts the jar with -XX:ArchiveClassesAtExit against the stand-ins of SmokeTest, bridges a
+// message in each direction and stops it, so that the classes loaded on startup and on the first
+// messages are dumped into a dynamic AppCDS archive
+// the archive is only usable with the same JDK and the same class path, so the jar is not the
+// repackaged one but a plain jar with the dependencies next to it, and the paths are relative
+// with --compare, the jar is started again without and with the archive to report the difference
+//
+// mvn -P cds package [-Dcds.args=--compare=true]
+public final class CdsTraining {
+
+  private CdsTraining() {
+    throw new AssertionError();
+  }
+
+  public static void main(String[] args) throws Exception {
+    var options = Options.parse(args);
+    var smokeTest = new SmokeTest(options.timeout(), options.overrides());
+    var jar = options.jar().toString();
+    Files.deleteIfExists(options.archive());
+    var training = smokeTest.run("training", List.of(SmokeTest.java(),
+        "-XX:ArchiveClassesAtExit=" + options.archive(), "-jar", jar));
+    if (!training.isPassed() || !Files.isRegularFile(options.archive())) {
+      System.out.println("Failed to dump the AppCDS archive: " + options.archive());
+      System.exit(1);
+    }
+    System.out.println("Dumped the AppCDS archive: %s (%.1f MiB)".formatted(options.archive(),
+        Files.size(options.archive()) / (1024.0 * 1024)));
+    if (!options.compare()) {
+      return;
+    }
+    // -Xshare:on fails instead of silently starting without the archive
+    var results = List.of(smokeTest.run("no-appcds", List.of(SmokeTest.java(), "-jar",
+            jar)),
+        smokeTest.run("appcds", List.of(SmokeTest.java(), "-Xshare:on",
+            "-XX:SharedArchiveFile=" + options.archive(), "-jar", jar)));
+    System.out.println(SmokeTest.Result.HEADER);
+    results.forEach(result -> System.out.println(result.format()));
+    if (!results.stream().allMatch(SmokeTest.Result::isPassed)) {
+      System.exit(1);
+    }
+  }
+
+  // --jar=target/cds/browumpus-0.1.0-cds.jar --archive=target/cds/browumpus.jsa --timeout=120s
+  // --compare=false, and any --browumpus.*, --spring.* or --logging.* options are passed to the
+  // application
+  record Options(@NotNull Path jar, @NotNull Path archive, @NotNull Duration timeout,
+                 boolean compare, @NotNull List<String> overrides) {
+
+    private static final Splitter OPTION_SPLITTER = Splitter.on('=').limit(2);
+
+    @Contract(pure = true)
+    static @NotNull Options parse(@NotNull String @NotNull [] args) {
+      var values = new HashMap<>(Map.of("jar", "target/cds/browumpus-0.1.0-cds.jar",
+          "archive", "target/cds/browumpus.jsa",
+          "timeout", "120s",
+          "compare", "false"));
+      var overrides = new ArrayList<String>();
+      for (var arg : args) {
+        var option = OPTION_SPLITTER.splitToList(arg.replaceFirst("^--", ""));
+        if (option.size() != 2) {
+          throw new IllegalArgumentException("Invalid option: " + arg);
+        }
+        if (values.containsKey(option.get(0))) {
+          values.put(option.get(0), option.get(1));
+        } else if (option.get(0).startsWith("browumpus.") || option.get(0).startsWith("spring.")
+            || option.get(0).startsWith("logging.")) {
+          overrides.add(arg);
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      }
+      return new Options(Path.of(values.get("jar")),
+          Path.of(values.get("archive")),
+          DurationStyle.detectAndParse(values.get("timeout")),
+          Boolean.parseBoolean(values.get("compare")),
+          List.copyOf(overrides));
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.util.FileSystemUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+
+// starts two nodes of the jar as a cluster sharing a lease directory, with a guild in each of the
+// two shards and a route in each guild, and bridges messages in both directions
+// the LINE webhooks of each route alternate between the nodes as a load balancer would spread
+// them, and every message is checked to arrive in the order sent within its route and direction
+// each round also posts a webhook with an event of each route, which are owned by different nodes
+// as long as the shards are, for the webhook to be forwarded while a route is relayed locally
+// an image is sent from Discord to each route last, and its link sent to LINE is fetched through
+// every node, as LINE would through a load balancer, while only the relaying node spools it
+//
+// mvn package -DskipTests
+// mvn -P load-test,cluster-test test-compile exec:exec
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class ClusterSmokeTest {
+
+  private static final String CHANNEL_SECRET = "cluster-test-channel-secret";
+  private static final String LINE_USER_ID = "U00000000000000000000000000000000";
+  private static final String HANDLER_PATH = "/cluster-test";
+  private static final int NODES = 2;
+  private static final Pattern FORWARDED = Pattern.compile(
+      "(?m)^line_webhook_forwards_total\\{.*outcome=\"forwarded\".*} (\\S+)$");
+  // in shard 1 and 0 of 2
+  private static final List<Route> ROUTES = List.of(
+      new Route("C00000000000000000000000000000001", DiscordGatewayStandIn.GUILD_ID,
+          "1100000000000000011"),
+      new Route("C00000000000000000000000000000002", "1000000000004194307",
+          "1100000000000000012"));
+
+  @NotNull Options options;
+  @NotNull HttpClient httpClient = HttpClient.newHttpClient();
+  @NotNull Mac mac;
+
+  private ClusterSmokeTest(@NotNull Options options) throws GeneralSecurityException {
+    this.options = options;
+    this.mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(CHANNEL_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    var passed = new ClusterSmokeTest(Options.parse(args)).run();
+    if (!passed) {
+      System.exit(1);
+    }
+  }
+
+  private boolean run() throws IOException, InterruptedException {
+    // not under TEMP_DIR, which the application wipes on startup
+    var dir = Files.createTempDirectory("browumpus-cluster-test");
+    var guilds = new HashMap<String, List<String>>();
+    ROUTES.forEach(route -> guilds.put(route.guildID(), List.of(route.channelID())));
+    var processes = new ArrayList<Process>();
+    try (var gateway = new DiscordGatewayStandIn(guilds);
+         var standIns = new ApiStandIns(Duration.ZERO, 0, gateway)) {
+      var baseURIs = new ArrayList<URI>();
+      for (var node = 0; node < NODES; node++) {
+        var port = SmokeTest.freePort();
+        baseURIs.add(URI.create("http://localhost:" + port));
+        processes.add(start(node, port, dir, gateway, standIns));
+      }
+      try {
+        if (!await(() -> baseURIs.stream().allMatch(this::isReady))) {
+          return fail("The nodes did not become ready", dir);
+        }
+        // the route and the direction to the markers, in the order sent
+        var sent = new TreeMap<String, List<Long>>();
+        var marker = 0L;
+        for (var round = 0; round < options.messages(); round++) {
+          for (var i = 0; i < ROUTES.size(); i++) {
+            var route = ROUTES.get(i);
+            var lineMarker = ++marker;
+            postLineWebhook(baseURIs.get((round + i) % NODES).resolve(HANDLER_PATH),
+                List.of(route), lineMarker);
+            sent.computeIfAbsent(route.lineID() + " LINE->Discord ", unused -> new ArrayList<>())
+                .add(lineMarker);
+            var discordMarker = ++marker;
+            gateway.createMessage(route.channelID(), "lt-" + discordMarker);
+            sent.computeIfAbsent(route.lineID() + " Discord->LINE ", unused -> new ArrayList<>())
+                .add(discordMarker);
+          }
+          postLineWebhook(baseURIs.get(round % NODES).resolve(HANDLER_PATH), ROUTES, marker + 1);
+          for (var route : ROUTES) {
+            sent.computeIfAbsent(route.lineID() + " LINE->Discord ", unused -> new ArrayList<>())
+                .add(++marker);
+          }
+        }
+        for (var route : ROUTES) {
+          var filename = "lt-%d.jpg".formatted(++marker);
+          gateway.createMessage(route.channelID(), "",
+              List.of(attachment(standIns, marker, filename)));
+          sent.computeIfAbsent(route.lineID() + " Discord->LINE ", unused -> new ArrayList<>())
+              .add(marker);
+        }
+        var total = marker;
+        var arrived = await(() -> standIns.arrivals().size() >= total);
+        var passed = arrived;
+        System.out.println("route                             direction      arrived  in order");
+        for (var entry : sent.entrySet()) {
+          var arrivals = entry.getValue()
+              .stream()
+              .map(standIns.arrivals()::get)
+              .filter(Objects::nonNull)
+              .toList();
+          var inOrder = true;
+          for (var i = 1; i < arrivals.size(); i++) {
+            inOrder &= arrivals.get(i - 1) <= arrivals.get(i);
+          }
+          passed &= inOrder;
+          System.out.println("%s %3d/%-3d  %s".formatted(entry.getKey(), arrivals.size(),
+              entry.getValue().size(), inOrder ? "ok" : "FAILED"));
+        }
+        // half of the webhooks reach the node not owning the route
+        var forwarded = 0L;
+        for (var baseURI : baseURIs) {
+          forwarded += forwardedWebhooks(baseURI);
+        }
+        System.out.println("Forwarded %d LINE webhooks between the nodes".formatted(forwarded));
+        passed &= forwarded > 0;
+        // read from the lease files, which hold the URLs of the owners
+        var owners = new ArrayList<String>();
+        for (var route : ROUTES) {
+          owners.add(Files.readString(dir.resolve("cluster")
+              .resolve("route-" + route.channelID() + ".lock")).strip());
+        }
+        System.out.println("Routes owned by %s".formatted(owners));
+        passed &= owners.stream().distinct().count() == ROUTES.size();
+        var fetched = 0;
+        for (var mediaURI : standIns.mediaURIs()) {
+          for (var baseURI : baseURIs) {
+            if (fetchMedia(baseURI, mediaURI, standIns.image())) {
+              fetched++;
+            }
+          }
+        }
+        var expected = ROUTES.size() * NODES;
+        System.out.println("Fetched %d/%d media links through every node".formatted(fetched,
+            expected));
+        passed &= fetched == expected;
+        return passed || fail("Failed to bridge in order", dir);
+      } finally {
+        for (var process : processes) {
+          process.destroy();
+        }
+        for (var process : processes) {
+          if (!process.waitFor(options.timeout().toMillis(), TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+          }
+        }
+      }
+    } finally {
+      FileSystemUtils.deleteRecursively(dir);
+    }
+  }
+
+  // the nodes share the lease directory and the routes, but not the outboxes
+  // nor the temporary directories, which each node wipes on startup with the spool in it
+  private @NotNull Process start(int node, int port, @NotNull Path dir,
+      @NotNull DiscordGatewayStandIn gateway, @NotNull ApiStandIns standIns) throws IOException {
+    var tempDir = Files.createDirectories(dir.resolve("tmp-" + node));
+    var args = new ArrayList<>(List.of(SmokeTest.java(),
+        "-Djava.io.tmpdir=" + tempDir,
+        "-jar",
+        options.jar().toString(),
+        "--server.port=" + port,
+        "--spring.main.banner-mode=off",
+        "--line.bot.channel-token=cluster-test",
+        "--line.bot.channel-secret=" + CHANNEL_SECRET,
+        "--line.bot.handler.path=" + HANDLER_PATH,
+        "--line.bot.api-end-point=" + standIns.lineEndpoint(),
+        "--line.bot.blob-end-point=" + standIns.lineBlobEndpoint(),
+        "--browumpus.host=localhost",
+        "--browumpus.discord.token=cluster-test",
+        "--browumpus.discord.api-base-url=" + standIns.discordAPIBaseURL(),
+        "--browumpus.discord.gateway-url=" + gateway.url(),
+        "--browumpus.bridges=" + String.join(",", ROUTES.stream()
+            .map(route -> route.lineID() + ":" + route.channelID())
+            .toList()),
+        "--browumpus.bridges-file=" + dir.resolve("bridges.json"),
+        "--browumpus.outbox.dir=" + dir.resolve("outbox-" + node),
+        "--browumpus.cluster.enabled=true",
+        "--browumpus.cluster.dir=" + dir.resolve("cluster"),
+        "--browumpus.cluster.node-url=http://localhost:" + port,
+        "--browumpus.cluster.shard-total=" + NODES));
+    args.addAll(options.overrides());
+    return new ProcessBuilder(args).redirectErrorStream(true)
+        .redirectOutput(dir.resolve("node-" + node + ".log").toFile())
+        .start();
+  }
+
+  private boolean isReady(@NotNull URI baseURI) {
+    try {
+      return httpClient.send(HttpRequest.newBuilder(baseURI.resolve(
+                  "/actuator/health/readiness")).build(), HttpResponse.BodyHandlers.discarding())
+          .statusCode() == 200;
+    } catch (IOException e) {
+      // not listening yet
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private long forwardedWebhooks(@NotNull URI baseURI) throws IOException, InterruptedException {
+    var metrics = httpClient.send(HttpRequest.newBuilder(baseURI.resolve("/actuator/prometheus"))
+        .build(), HttpResponse.BodyHandlers.ofString()).body();
+    return FORWARDED.matcher(metrics)
+        .results()
+        .mapToLong(result -> (long) Double.parseDouble(result.group(1)))
+        .sum();
+  }
+
+  // an event for each of the routes, with the markers counted up from the first one
+  // the whole image and a range of it
+  private boolean fetchMedia(@NotNull URI baseURI, @NotNull URI mediaURI, byte @NotNull [] image)
+      throws IOException, InterruptedException {
+    var uri = baseURI.resolve(mediaURI.getRawPath() + "?" + mediaURI.getRawQuery());
+    var whole = httpClient.send(HttpRequest.newBuilder(uri).build(),
+        HttpResponse.BodyHandlers.ofByteArray());
+    var range = httpClient.send(HttpRequest.newBuilder(uri).header("Range", "bytes=0-99").build(),
+        HttpResponse.BodyHandlers.ofByteArray());
+    var fetched = whole.statusCode() == 200 && Arrays.equals(whole.body(), image)
+        && range.statusCode() == 206 && Arrays.equals(range.body(), Arrays.copyOf(image, 100));
+    if (!fetched) {
+      System.out.println("Failed to fetch %s: %d, range %d".formatted(uri, whole.statusCode(),
+          range.statusCode()));
+    }
+    return fetched;
+  }
+
+  @Contract(pure = true)
+  private static @NotNull Map<String, Object> attachment(@NotNull ApiStandIns standIns,
+      long marker, @NotNull String filename) {
+    var url = standIns.discordAttachmentURL(filename);
+    return Map.of("id", String.valueOf(1_200_000_000_000_000_000L + marker),
+        "filename", filename,
+        "size", standIns.image().length,
+        "url", url,
+        "proxy_url", url,
+        "content_type", "image/jpeg");
+  }
+
+  private void postLineWebhook(@NotNull URI webhookURI, @NotNull List<Route> routes,
+      long firstMarker) throws IOException, InterruptedException {
+    var events = new ArrayList<String>();
+    for (var i = 0; i < routes.size(); i++) {
+      events.add("""
+          {"type":"message","mode":"active","timestamp":%d,\
+          "source":{"type":"group","groupId":"%s","userId":"%s"},"webhookEventId":"lt-%d",\
+          "deliveryContext":{"isRedelivery":false},"replyToken":"lt-%4$d",\
+          "message":{"type":"text","id":"lt-%4$d","text":"lt-%4$d"}}"""
+          .formatted(System.currentTimeMillis(), routes.get(i).lineID(), LINE_USER_ID,
+              firstMarker + i));
+    }
+    var body = "{\"destination\":\"U0\",\"events\":[%s]}".formatted(String.join(",", events))
+        .getBytes(StandardCharsets.UTF_8);
+    var response = httpClient.send(HttpRequest.newBuilder(webhookURI)
+        .header("Content-Type", "application/json")
+        .header("X-Line-Signature", BaseEncoding.base64().encode(mac.doFinal(body)))
+        .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+        .build(), HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() != 200) {
+      System.out.println("LINE webhook rejected: %d %s".formatted(response.statusCode(),
+          response.body()));
+    }
+  }
+
+  private boolean await(@NotNull BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.nanoTime() + options.timeout().toNanos();
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    return true;
+  }
+
+  @Contract("_, _ -> false")
+  private static boolean fail(@NotNull String reason, @NotNull Path dir) throws IOException {
+    System.out.println(reason + ", the logs of the nodes follow");
+    for (var node = 0; node < NODES; node++) {
+      System.out.println("--- node " + node);
+      System.out.println(Files.readString(dir.resolve("node-" + node + ".log")));
+    }
+    return false;
+  }
+
+  private record Route(@NotNull String lineID, @NotNull String guildID,
+                       @NotNull String channelID) {}
+
+  // --jar=target/browumpus-0.1.0.jar --messages=20 --timeout=90s, and any --browumpus.*,
+  // --spring.* or --logging.* options are passed to the nodes
+  private record Options(@NotNull Path jar, int messages, @NotNull Duration timeout,
+                         @NotNull List<String> overrides) {
+
+    private static final Splitter OPTION_SPLITTER = Splitter.on('=').limit(2);
+
+    @Contract(pure = true)
+    static @NotNull Options parse(@NotNull String @NotNull [] args) {
+      var values = new HashMap<>(Map.of("jar", "target/browumpus-0.1.0.jar",
+          "messages", "20",
+          "timeout", "90s"));
+      var overrides = new ArrayList<String>();
+      for (var arg : args) {
+        var option = OPTION_SPLITTER.splitToList(arg.replaceFirst("^--", ""));
+        if (option.size() != 2) {
+          throw new IllegalArgumentException("Invalid option: " + arg);
+        }
+        if (values.containsKey(option.get(0))) {
+          values.put(option.get(0), option.get(1));
+        } else if (option.get(0).startsWith("browumpus.") || option.get(0).startsWith("spring.")
+            || option.get(0).startsWith("logging.")) {
+          overrides.add(arg);
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      }
+      return new Options(Path.of(values.get("jar")),
+          Integer.parseInt(values.get("messages")),
+          DurationStyle.detectAndParse(values.get("timeout")),
+          List.copyOf(overrides));
+    }
+  }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.BaseEncoding;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+// a Discord gateway which logs the bot into the guilds owned by it with the bridged text channels,
+// and dispatches the messages created by the smoke test
+// a sharded session only receives the guilds of its shard, as Discord assigns them by the ID
+// only the opcodes which JDA needs to become ready are handled, over uncompressed text frames
+// which JDA accepts even if it asked for compression
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+final class DiscordGatewayStandIn implements AutoCloseable {
+
+  static final String BOT_USER_ID = "1000000000000000001";
+  static final String GUILD_ID = "1000000000000000002";
+
+  private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final Pattern KEY_HEADER = Pattern.compile(
+      "(?im)^Sec-WebSocket-Key:\\s*(\\S+)\\s*$");
+  private static final String JOINED_AT = "2023-01-01T00:00:00.000000+00:00";
+
+  @NotNull ServerSocket serverSocket;
+  @NotNull ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  @NotNull ObjectMapper objectMapper = new ObjectMapper();
+  // guild ID to the channel IDs
+  @NotNull Map<String, List<String>> guilds;
+  @NotNull Set<Session> sessions = ConcurrentHashMap.newKeySet();
+  @NotNull AtomicInteger nextID = new AtomicInteger();
+
+  DiscordGatewayStandIn(@NotNull List<String> channelIDs) throws IOException {
+    this(Map.of(GUILD_ID, channelIDs));
+  }
+
+  DiscordGatewayStandIn(@NotNull Map<String, List<String>> guilds) throws IOException {
+    this.guilds = Map.copyOf(guilds);
+    serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+    executor.execute(this::accept);
+  }
+
+  @Contract(pure = true)
+  @NotNull String url() {
+    return "ws://%s:%d".formatted(serverSocket.getInetAddress().getHostAddress(),
+        serverSocket.getLocalPort());
+  }
+
+  @Contract(pure = true)
+  @NotNull Map<String, Object> botUser() {
+    return Map.of("id", BOT_USER_ID,
+        "username", "browumpus",
+        "discriminator", "0",
+        "bot", true,
+        "verified", true,
+        "mfa_enabled", false,
+        "flags", 0);
+  }
+
+  @Contract(pure = true)
+  @NotNull String guildOf(@NotNull String channelID) {
+    return guilds.entrySet()
+        .stream()
+        .filter(guild -> guild.getValue().contains(channelID))
+        .map(Map.Entry::getKey)
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("Unknown channel: " + channelID));
+  }
+
+  void createMessage(@NotNull String channelID, @NotNull String content) {
+    createMessage(channelID, content, List.of());
+  }
+
+  // dispatched to every session logged in to the shard of the guild
+  void createMessage(@NotNull String channelID, @NotNull String content,
+      @NotNull List<Map<String, Object>> attachments) {
+    var id = String.valueOf(2_000_000_000_000_000_000L + nextID.incrementAndGet());
+    var guildID = guildOf(channelID);
+    var message = Map.ofEntries(Map.entry("id", id),
+        Map.entry("channel_id", channelID),
+        Map.entry("guild_id", guildID),
+        Map.entry("author", Map.of("id", "1000000000000000003",
+            "username", "smoke-test",
+            "discriminator", "0",
+            "bot", false)),
+        Map.entry("member", member()),
+        Map.entry("content", content),
+        Map.entry("timestamp", JOINED_AT),
+        Map.entry("tts", false),
+        Map.entry("mention_everyone", false),
+        Map.entry("mentions", List.of()),
+        Map.entry("mention_roles", List.of()),
+        Map.entry("attachments", attachments),
+        Map.entry("embeds", List.of()),
+        Map.entry("components", List.of()),
+        Map.entry("pinned", false),
+        Map.entry("type", 0),
+        Map.entry("flags", 0));
+    sessions.stream()
+        .filter(session -> session.receives(guildID))
+        .forEach(session -> session.dispatch("MESSAGE_CREATE", message));
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    executor.shutdownNow();
+  }
+
+  private void accept() {
+    try {
+      while (true) {
+        var socket = serverSocket.accept();
+        executor.execute(() -> new Session(socket).run());
+      }
+    } catch (IOException e) {
+      // closed
+    }
+  }
+
+  @Contract(pure = true)
+  private @NotNull Map<String, Object> guild(@NotNull String guildID) {
+    var channelIDs = guilds.get(guildID);
+    var channels = channelIDs.stream()
+        .map(channelID -> Map.<String, Object>of("id", channelID,
+            "type", 0,
+            "guild_id", guildID,
+            "name", "bridge-" + channelID,
+            "position", channelIDs.indexOf(channelID),
+            "permission_overwrites", List.of(),
+            "nsfw", false,
+            "rate_limit_per_user", 0))
+        .toList();
+    // the owner has every permission, including managing webhooks
+    return Map.ofEntries(Map.entry("id", guildID),
+        Map.entry("name", "Smoke Test"),
+        Map.entry("owner_id", BOT_USER_ID),
+        Map.entry("afk_timeout", 300),
+        Map.entry("verification_level", 0),
+        Map.entry("default_message_notifications", 0),
+        Map.entry("explicit_content_filter", 0),
+        Map.entry("mfa_level", 0),
+        Map.entry("nsfw_level", 0),
+        Map.entry("premium_tier", 0),
+        Map.entry("premium_subscription_count", 0),
+        Map.entry("preferred_locale", "en-US"),
+        Map.entry("system_channel_flags", 0),
+        Map.entry("features", List.of()),
+        Map.entry("roles", List.of(Map.of("id", guildID,
+            "name", "@everyone",
+            "color", 0,
+            "hoist", false,
+            "position", 0,
+            "permissions", "0",
+            "managed", false,
+            "mentionable", false,
+            "flags", 0))),
+        Map.entry("emojis", List.of()),
+        Map.entry("stickers", List.of()),
+        Map.entry("joined_at", JOINED_AT),
+        Map.entry("large", false),
+        Map.entry("unavailable", false),
+        Map.entry("member_count", 2),
+        Map.entry("members", List.of(Map.of("user", botUser(),
+            "roles", List.of(),
+            "joined_at", JOINED_AT,
+            "deaf", false,
+            "mute", false,
+            "flags", 0))),
+        Map.entry("channels", channels),
+        Map.entry("threads", List.of()),
+        Map.entry("voice_states", List.of()),
+        Map.entry("presences", List.of()),
+        Map.entry("stage_instances", List.of()),
+        Map.entry("guild_scheduled_events", List.of()));
+  }
+
+  @Contract(pure = true)
+  private static @NotNull Map<String, Object> member() {
+    return Map.of("roles", List.of(), "joined_at", JOINED_AT, "deaf", false, "mute", false,
+        "flags", 0);
+  }
+
+  @Contract(pure = true)
+  private static @NotNull String acceptKey(@NotNull String key) {
+    try {
+      return BaseEncoding.base64()
+          .encode(MessageDigest.getInstance("SHA-1")
+              .digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+  private final class Session {
+
+    @NotNull Socket socket;
+    @NotNull AtomicInteger sequence = new AtomicInteger();
+    // set on identify, the shard ID and the number of shards
+    @NotNull AtomicInteger shardID = new AtomicInteger();
+    @NotNull AtomicInteger shardTotal = new AtomicInteger(1);
+
+    Session(@NotNull Socket socket) {
+      this.socket = socket;
+    }
+
+    void run() {
+      try (socket) {
+        var input = new DataInputStream(socket.getInputStream());
+        handshake(input);
+        send(Map.of("op", 10, "d", Map.of("heartbeat_interval", 45_000)));
+        var message = new ByteArrayOutputStream();
+        while (true) {
+          var first = input.readUnsignedByte();
+          var opcode = first & 0x0F;
+          var payload = readPayload(input);
+          switch (opcode) {
+            // continuation, text and binary
+            case 0, 1, 2 -> {
+              message.write(payload);
+              if ((first & 0x80) != 0) {
+                receive(objectMapper.readTree(message.toByteArray()));
+                message.reset();
+              }
+            }
+            case 8 -> {
+              write(0x88, payload);
+              return;
+            }
+            case 9 -> write(0x8A, payload);
+            default -> {}
+          }
+        }
+      } catch (EOFException e) {
+        // disconnected
+      } catch (IOException e) {
+        log.debug("Gateway session failed", e);
+      } finally {
+        sessions.remove(this);
+      }
+    }
+
+    // the shard of a guild is derived from the timestamp of its ID
+    @Contract(pure = true)
+    boolean receives(@NotNull String guildID) {
+      return (Long.parseLong(guildID) >> 22) % shardTotal.get() == shardID.get();
+    }
+
+    void dispatch(@NotNull String type, @NotNull Object data) {
+      try {
+        send(Map.of("op", 0, "t", type, "s", sequence.incrementAndGet(), "d", data));
+      } catch (IOException e) {
+        log.warn("Failed to dispatch {}", type, e);
+      }
+    }
+
+    private void handshake(@NotNull DataInputStream input) throws IOException {
+      var request = new ByteArrayOutputStream();
+      while (!request.toString(StandardCharsets.US_ASCII).endsWith("\r\n\r\n")) {
+        request.write(input.readUnsignedByte());
+      }
+      var key = KEY_HEADER.matcher(request.toString(StandardCharsets.US_ASCII))
+          .results()
+          .findFirst()
+          .orElseThrow(() -> new IOException("Not a WebSocket handshake"))
+          .group(1);
+      var output = socket.getOutputStream();
+      output.write("""
+          HTTP/1.1 101 Switching Protocols\r
+          Upgrade: websocket\r
+          Connection: Upgrade\r
+          Sec-WebSocket-Accept: %s\r
+          \r
+          """.formatted(acceptKey(key)).getBytes(StandardCharsets.US_ASCII));
+      output.flush();
+    }
+
+    private void receive(@NotNull JsonNode payload) throws IOException {
+      switch (payload.path("op").asInt()) {
+        // heartbeat
+        case 1 -> send(Map.of("op", 11));
+        // identify
+        case 2 -> {
+          var shard = payload.path("d").path("shard");
+          if (shard.size() == 2) {
+            shardID.set(shard.get(0).asInt());
+            shardTotal.set(shard.get(1).asInt());
+          }
+          var guildIDs = guilds.keySet().stream().filter(this::receives).toList();
+          sessions.add(this);
+          dispatch("READY", Map.of("v", 10,
+              "user", botUser(),
+              "guilds", guildIDs.stream()
+                  .map(guildID -> Map.of("id", guildID, "unavailable", true))
+                  .toList(),
+              "session_id", "smoke-test",
+              "resume_gateway_url", url(),
+              "application", Map.of("id", BOT_USER_ID, "flags", 0),
+              "private_channels", List.of(),
+              "relationships", List.of(),
+              "presences", List.of()));
+          guildIDs.forEach(guildID -> dispatch("GUILD_CREATE", guild(guildID)));
+        }
+        default -> {}
+      }
+    }
+
+    private void send(@NotNull Object payload) throws IOException {
+      write(0x81, objectMapper.writeValueAsBytes(payload));
+    }
+
+    // unmasked as sent by a server
+    private synchronized void write(int first, byte @NotNull [] payload) throws IOException {
+      OutputStream output = socket.getOutputStream();
+      output.write(first);
+      if (payload.length < 126) {
+        output.write(payload.length);
+      } else if (payload.length <= 0xFFFF) {
+        output.write(126);
+        output.write(payload.length >>> 8);
+        output.write(payload.length);
+      } else {
+        output.write(127);
+        for (var shift = 56; shift >= 0; shift -= 8) {
+          output.write((int) ((long) payload.length >>> shift));
+        }
+      }
+      output.write(payload);
+      output.flush();
+    }
+
+    // masked as sent by a client
+    private static byte @NotNull [] readPayload(@NotNull DataInputStream input)
+        throws IOException {
+      var second = input.readUnsignedByte();
+      long length = second & 0x7F;
+      if (length == 126) {
+        length = input.readUnsignedShort();
+      } else if (length == 127) {
+        length = input.readLong();
+      }
+      var mask = new byte[4];
+      var masked = (second & 0x80) != 0;
+      if (masked) {
+        input.readFully(mask);
+      }
+      var payload = new byte[Math.toIntExact(length)];
+      input.readFully(payload);
+      if (masked) {
+        for (var i = 0; i < payload.length; i++) {
+          payload[i] ^= mask[i % 4];
+        }
+      }
+      return payload;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.primitives.Longs;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// latencies are from sending the webhook or the event to the request reaching the stand-in
+record LoadReport(@NotNull LoadTest.Options options, int sent, @NotNull List<Long> lineLatencies,
+                  @NotNull List<Long> discordLatencies, @NotNull Duration elapsed,
+                  @NotNull LoadTest.ResourceUsage cost, long failedPosts, long lineRateLimited,
+                  long discordRateLimited) {
+
+  @Contract(pure = true)
+  private int delivered() {
+    return lineLatencies.size() + discordLatencies.size();
+  }
+
+  @Override
+  public @NotNull String toString() {
+    var delivered = Math.max(1, delivered());
+    return String.join("\n",
+        "Load test: %s".formatted(options),
+        "Messages: %d sent, %d delivered, %d lost, %d webhook POSTs failed".formatted(sent,
+            delivered(),
+            sent - delivered(),
+            failedPosts),
+        "Rate limited: %d LINE pushes, %d Discord webhook executions".formatted(lineRateLimited,
+            discordRateLimited),
+        "Throughput: %.1f messages/s".formatted(delivered() / (elapsed.toNanos() / 1e9)),
+        "Latency LINE -> Discord: " + latencies(lineLatencies),
+        "Latency Discord -> LINE: " + latencies(discordLatencies),
+        "Latency all: " + latencies(Stream.concat(lineLatencies.stream(),
+            discordLatencies.stream()).toList()),
+        "Heap: %,d bytes allocated per message".formatted(cost.allocatedBytes() / delivered),
+        "GC: %d collections, %d ms, %.3f ms per message".formatted(cost.gcCount(),
+            cost.gcTime().toMillis(),
+            (double) cost.gcTime().toMillis() / delivered));
+  }
+
+  @Contract(pure = true)
+  private static @NotNull String latencies(@NotNull List<Long> latencies) {
+    if (latencies.isEmpty()) {
+      return "-";
+    }
+    var sorted = Longs.toArray(latencies);
+    Arrays.sort(sorted);
+    return "p50 %.1f ms, p99 %.1f ms, max %.1f ms".formatted(millis(percentile(sorted, 0.5)),
+        millis(percentile(sorted, 0.99)),
+        millis(sorted[sorted.length - 1]));
+  }
+
+  @Contract(pure = true)
+  private static long percentile(long @NotNull [] sorted, double quantile) {
+    return sorted[Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1)];
+  }
+
+  @Contract(pure = true)
+  private static double millis(long nanos) {
+    return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import io.github.risu729.browumpus.util.FileUtil;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.SelfUser;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.entities.Webhook;
+import net.dv8tion.jda.api.entities.channel.attribute.IWebhookContainer;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.api.requests.RestAction;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+// runs a bridge instance against ApiStandIns and sends messages at a fixed rate in both
+// directions: LINE messages as signed webhook POSTs to the handler path, and Discord messages as
+// MessageReceivedEvents into DiscordListener as the JDA event thread would
+// the Discord gateway is not emulated, so JDA is replaced with a stub which only resolves the
+// webhooks of the bridged channels to the stand-in
+//
+// mvn -P load-test test-compile exec:exec -Dload-test.args="--messages=20000 --rate=1000"
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class LoadTest {
+
+  private static final String CHANNEL_SECRET = "load-test-channel-secret";
+  private static final String SELF_USER_ID = "1000000000000000000";
+
+  @NotNull Options options;
+  @NotNull ApiStandIns standIns;
+  @NotNull List<Bridge> bridges;
+  @NotNull HttpClient httpClient = HttpClient.newBuilder()
+      .executor(Executors.newVirtualThreadPerTaskExecutor())
+      .build();
+  @NotNull AtomicLong failedPosts = new AtomicLong();
+  @NotNull JDA jda;
+  @NotNull SplittableRandom random = new SplittableRandom(0);
+  @NotNull Mac mac;
+
+  private LoadTest(@NotNull Options options, @NotNull ApiStandIns standIns)
+      throws GeneralSecurityException {
+    this.options = options;
+    this.standIns = standIns;
+    var bridges = new ArrayList<Bridge>();
+    for (var i = 0; i < options.bridges(); i++) {
+      var channelID = Long.toString(1100000000000000000L + i);
+      bridges.add(new Bridge("C%032x".formatted(i),
+          channelID,
+          stub(MessageChannelUnion.class, Map.of("getId", args -> channelID)),
+          "U%032x".formatted(i),
+          stubUser(Long.toString(1200000000000000000L + i))));
+    }
+    this.bridges = List.copyOf(bridges);
+    this.jda = stubJDA();
+    this.mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(CHANNEL_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    var options = Options.parse(args);
+    // the restart class loader of devtools would load the application twice
+    System.setProperty("spring.devtools.restart.enabled", "false");
+    Files.createDirectories(BrowumpusApplication.TEMP_DIR);
+    var dir = Files.createTempDirectory(BrowumpusApplication.TEMP_DIR, "load-test");
+    try (var standIns = new ApiStandIns(options.latency(), options.rateLimitRatio())) {
+      var loadTest = new LoadTest(options, standIns);
+      try (var context = loadTest.start(dir)) {
+        var port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        var webhookURI = URI.create("http://localhost:%d%s".formatted(port,
+            context.getEnvironment().getRequiredProperty("line.bot.handler.path")));
+        var listener = context.getBean(DiscordListener.class);
+
+        loadTest.run(0, options.warmup(), webhookURI, listener);
+        System.out.println(loadTest.run(options.warmup(), options.messages(), webhookURI,
+            listener));
+      }
+    } finally {
+      FileUtil.deleteQuietly(dir);
+    }
+  }
+
+  private @NotNull ConfigurableApplicationContext start(@NotNull Path dir) {
+    var args = new ArrayList<>(List.of("--server.port=0",
+        // the JDA registered below takes precedence over the one in DiscordBotAutoConfiguration
+        "--spring.main.allow-bean-definition-overriding=true",
+        "--spring.main.banner-mode=off",
+        "--line.bot.channel-token=load-test",
+        "--line.bot.channel-secret=" + CHANNEL_SECRET,
+        "--line.bot.api-end-point=" + standIns.lineEndpoint(),
+        "--line.bot.blob-end-point=" + standIns.lineBlobEndpoint(),
+        "--browumpus.host=localhost",
+        "--browumpus.discord.token=load-test",
+        "--browumpus.bridges=" + String.join(",", bridges.stream()
+            .map(bridge -> bridge.lineID() + ":" + bridge.channelID())
+            .toList()),
+        "--browumpus.bridges-file=" + dir.resolve("bridges.json"),
+        "--browumpus.outbox.dir=" + dir.resolve("outbox")));
+    args.addAll(options.overrides());
+    return new SpringApplicationBuilder(BrowumpusApplication.class)
+        // every message is logged at INFO otherwise, a default property to be overridden by options
+        .properties("logging.level.io.github.risu729.browumpus=WARN")
+        .initializers((ApplicationContextInitializer<GenericApplicationContext>) context ->
+            context.registerBean("jda", JDA.class, () -> {
+              // the stub is ready at once, reported as DiscordBotAutoConfiguration would
+              context.getBean(StartupTasks.class)
+                  .run(DiscordBotAutoConfiguration.GATEWAY_TASK, () -> {});
+              return jda;
+            }))
+        .run(args.toArray(String[]::new));
+  }
+
+  private @NotNull LoadReport run(int first, int count, @NotNull URI webhookURI,
+      @NotNull DiscordListener listener) throws InterruptedException {
+    var sentAt = new long[count];
+    var fromLine = new boolean[count];
+    var interval = options.rate() == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / options.rate();
+
+    var usage = ResourceUsage.now();
+    var start = System.nanoTime();
+    for (var i = 0; i < count; i++) {
+      var due = start + i * interval;
+      while (System.nanoTime() < due) {
+        LockSupport.parkNanos(due - System.nanoTime());
+      }
+      var marker = first + i;
+      var bridge = bridges.get(i % bridges.size());
+      fromLine[i] = random.nextDouble() < options.lineRatio();
+      sentAt[i] = System.nanoTime();
+      if (fromLine[i]) {
+        postLineWebhook(webhookURI, bridge, marker);
+      } else {
+        listener.onMessageReceived(discordEvent(bridge, marker));
+      }
+    }
+
+    // wait for the stragglers, which are retried after 429 or lost
+    var arrivals = standIns.arrivals();
+    var deadline = System.nanoTime() + options.timeout().toNanos();
+    while (System.nanoTime() < deadline && !hasArrived(arrivals, first, count)) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    var cost = ResourceUsage.now().minus(usage);
+
+    var lineLatencies = new ArrayList<Long>();
+    var discordLatencies = new ArrayList<Long>();
+    var last = start;
+    for (var i = 0; i < count; i++) {
+      var arrival = arrivals.get((long) first + i);
+      if (arrival == null) {
+        continue;
+      }
+      last = Math.max(last, arrival);
+      (fromLine[i] ? lineLatencies : discordLatencies).add(arrival - sentAt[i]);
+    }
+    return new LoadReport(options,
+        count,
+        lineLatencies,
+        discordLatencies,
+        Duration.ofNanos(last - start),
+        cost,
+        failedPosts.getAndSet(0),
+        standIns.takeLineRateLimited(),
+        standIns.takeDiscordRateLimited());
+  }
+
+  private void postLineWebhook(@NotNull URI webhookURI, @NotNull Bridge bridge, int marker) {
+    var content = random.nextDouble() < options.imageRatio()
+        ? """
+        {"type":"image","id":"lt-%d","contentProvider":{"type":"line"}}""".formatted(marker)
+        : """
+        {"type":"text","id":"lt-%d","text":"lt-%d"}""".formatted(marker, marker);
+    var body = """
+        {"destination":"U0","events":[{"type":"message","mode":"active","timestamp":%d,\
+        "source":{"type":"group","groupId":"%s","userId":"%s"},"webhookEventId":"lt-%d",\
+        "deliveryContext":{"isRedelivery":false},"replyToken":"lt-%d","message":%s}]}"""
+        .formatted(System.currentTimeMillis(),
+            bridge.lineID(),
+            bridge.lineUserID(),
+            marker,
+            marker,
+            content)
+        .getBytes(StandardCharsets.UTF_8);
+    byte[] signature;
+    synchronized (mac) {
+      signature = mac.doFinal(body);
+    }
+    httpClient.sendAsync(HttpRequest.newBuilder(webhookURI)
+                .header("Content-Type", "application/json")
+                .header("X-Line-Signature", BaseEncoding.base64().encode(signature))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build(),
+            HttpResponse.BodyHandlers.discarding())
+        .whenComplete((response, e) -> {
+          if (e != null || response.statusCode() != 200) {
+            failedPosts.incrementAndGet();
+          }
+        });
+  }
+
+  private @NotNull MessageReceivedEvent discordEvent(@NotNull Bridge bridge, int marker) {
+    return new MessageReceivedEvent(jda, marker, stub(net.dv8tion.jda.api.entities.Message.class,
+        Map.of("getIdLong", args -> (long) marker,
+            "getId", args -> Integer.toString(marker),
+            "getChannel", args -> bridge.channel(),
+            "getAuthor", args -> bridge.discordUser(),
+            "getContentStripped", args -> "lt-" + marker,
+            "getAttachments", args -> List.of())));
+  }
+
+  private @NotNull JDA stubJDA() {
+    var selfUser = stub(SelfUser.class, Map.of("getId", args -> SELF_USER_ID));
+    return stub(JDA.class, Map.of("getSelfUser", args -> selfUser,
+        "getChannelById", args -> stubWebhookContainer(args[1].toString())));
+  }
+
+  // resolves the webhook named Browumpus to the stand-in, as DiscordWebhookPool looks it up
+  private @NotNull IWebhookContainer stubWebhookContainer(@NotNull String channelID) {
+    var webhook = stub(Webhook.class, Map.of("getName", args -> "Browumpus",
+        "getUrl", args -> standIns.discordWebhookURL(channelID)));
+    var retrieveWebhooks = stub(RestAction.class,
+        Map.of("submit", args -> CompletableFuture.completedFuture(List.of(webhook))));
+    return stub(IWebhookContainer.class, Map.of("retrieveWebhooks", args -> retrieveWebhooks));
+  }
+
+  @Contract(pure = true)
+  private static @NotNull User stubUser(@NotNull String id) {
+    return stub(User.class, Map.of("getId", args -> id,
+        "getName", args -> "user-" + id,
+        "getEffectiveAvatarUrl", args -> "https://cdn.discordapp.com/embed/avatars/0.png"));
+  }
+
+  // answers by method name, and with null, false or zero otherwise
+  @Contract(pure = true)
+  private static <T> @NotNull T stub(@NotNull Class<T> type,
+      @NotNull Map<String, Function<Object[], Object>> answers) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+        new Class<?>[] {type},
+        (proxy, method, args) -> switch (method.getName()) {
+          case "toString" -> type.getSimpleName() + " stub";
+          case "hashCode" -> System.identityHashCode(proxy);
+          case "equals" -> proxy == args[0];
+          default -> {
+            var answer = answers.get(method.getName());
+            if (answer != null) {
+              yield answer.apply(args);
+            }
+            var returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+              yield false;
+            } else if (returnType == long.class) {
+              yield 0L;
+            } else if (returnType == int.class) {
+              yield 0;
+            }
+            yield null;
+          }
+        }));
+  }
+
+  @Contract(pure = true)
+  private static boolean hasArrived(@NotNull Map<Long, Long> arrivals, int first, int count) {
+    for (var i = 0; i < count; i++) {
+      if (!arrivals.containsKey((long) first + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private record Bridge(@NotNull String lineID, @NotNull String channelID,
+                        @NotNull MessageChannelUnion channel, @NotNull String lineUserID,
+                        @NotNull User discordUser) {}
+
+  // --messages=10000 --warmup=2000 --rate=500 --bridges=4 --line-ratio=0.5 --image-ratio=0
+  // --latency=20ms --rate-limit-ratio=0.01 --timeout=30s, and any --browumpus.*, --spring.* or
+  // --logging.* options are passed to the application
+  record Options(int messages, int warmup, int rate, int bridges, double lineRatio,
+                 double imageRatio, @NotNull Duration latency, double rateLimitRatio,
+                 @NotNull Duration timeout, @NotNull List<String> overrides) {
+
+    private static final Splitter OPTION_SPLITTER = Splitter.on('=').limit(2);
+
+    @Contract(pure = true)
+    static @NotNull Options parse(@NotNull String @NotNull [] args) {
+      var values = new HashMap<>(Map.of("messages", "10000",
+          "warmup", "2000",
+          "rate", "500",
+          "bridges", "4",
+          "line-ratio", "0.5",
+          "image-ratio", "0",
+          "latency", "20ms",
+          "rate-limit-ratio", "0.01",
+          "timeout", "30s"));
+      var overrides = new ArrayList<String>();
+      for (var arg : args) {
+        var option = OPTION_SPLITTER.splitToList(arg.replaceFirst("^--", ""));
+        if (option.size() != 2) {
+          throw new IllegalArgumentException("Invalid option: " + arg);
+        }
+        if (values.containsKey(option.get(0))) {
+          values.put(option.get(0), option.get(1));
+        } else if (option.get(0).startsWith("browumpus.") || option.get(0).startsWith("spring.")
+            || option.get(0).startsWith("logging.")) {
+          overrides.add(arg);
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      }
+      return new Options(Integer.parseInt(values.get("messages")),
+          Integer.parseInt(values.get("warmup")),
+          Integer.parseInt(values.get("rate")),
+          Integer.parseInt(values.get("bridges")),
+          Double.parseDouble(values.get("line-ratio")),
+          Double.parseDouble(values.get("image-ratio")),
+          parseDuration(values.get("latency")),
+          Double.parseDouble(values.get("rate-limit-ratio")),
+          parseDuration(values.get("timeout")),
+          List.copyOf(overrides));
+    }
+
+    @Contract(pure = true)
+    private static @NotNull Duration parseDuration(@NotNull String duration) {
+      return DurationStyle.detectAndParse(duration);
+    }
+  }
+
+  // allocated bytes and GC of the whole JVM, including the stand-ins and this driver
+  record ResourceUsage(long allocatedBytes, long gcCount, @NotNull Duration gcTime) {
+
+    static @NotNull ResourceUsage now() {
+      var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      var gcCount = 0L;
+      var gcTime = 0L;
+      for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        gcCount += Math.max(0, gc.getCollectionCount());
+        gcTime += Math.max(0, gc.getCollectionTime());
+      }
+      return new ResourceUsage(threads.getTotalThreadAllocatedBytes(),
+          gcCount,
+          Duration.ofMillis(gcTime));
+    }
+
+    @Contract(pure = true)
+    @NotNull ResourceUsage minus(@NotNull ResourceUsage other) {
+      return new ResourceUsage(allocatedBytes - other.allocatedBytes(),
+          gcCount - other.gcCount(),
+          gcTime.minus(other.gcTime()));
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.util.FileSystemUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+
+// starts the jar as a separate process against ApiStandIns and DiscordGatewayStandIn, and checks
+// that a message is bridged in each direction
+// the time until the readiness is up and the resident memory after bridging are reported, and
+// the process exits with 1 if it fails to bridge
+//
+// mvn package -DskipTests
+// mvn -P load-test,smoke-test test-compile exec:exec
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class SmokeTest {
+
+  private static final String CHANNEL_SECRET = "smoke-test-channel-secret";
+  private static final String LINE_GROUP_ID = "C00000000000000000000000000000000";
+  private static final String LINE_USER_ID = "U00000000000000000000000000000000";
+  private static final String CHANNEL_ID = "1100000000000000000";
+  // in the same guild, and its messages are dropped by the gateway filter
+  private static final String UNBRIDGED_CHANNEL_ID = "1100000000000000001";
+  private static final String HANDLER_PATH = "/smoke-test";
+  private static final Pattern VM_RSS = Pattern.compile("(?m)^VmRSS:\\s+(\\d+) kB$");
+
+  @NotNull Duration timeout;
+  // passed to the application after the options for the stand-ins
+  @NotNull List<String> overrides;
+  @NotNull HttpClient httpClient = HttpClient.newHttpClient();
+  @NotNull Mac mac;
+
+  SmokeTest(@NotNull Duration timeout, @NotNull List<String> overrides)
+      throws GeneralSecurityException {
+    this.timeout = timeout;
+    this.overrides = List.copyOf(overrides);
+    this.mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(CHANNEL_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    var options = Options.parse(args);
+    var smokeTest = new SmokeTest(options.timeout(), options.overrides());
+    if (!Files.isRegularFile(options.jar())) {
+      System.out.println("Jar not found: " + options.jar());
+      System.exit(1);
+    }
+    var result = smokeTest.run("jvm", List.of(java(), "-jar", options.jar().toString()));
+    System.out.println(Result.HEADER);
+    System.out.println(result.format());
+    if (!result.isPassed()) {
+      System.exit(1);
+    }
+  }
+
+  // the process is stopped with SIGTERM after bridging, and waited for until it exits
+  @NotNull Result run(@NotNull String name, @NotNull List<String> command)
+      throws IOException, InterruptedException {
+    // not under TEMP_DIR, which the application wipes on startup
+    var dir = Files.createTempDirectory("browumpus-smoke-test");
+    var log = dir.resolve("application.log");
+    var channelIDs = List.of(CHANNEL_ID, UNBRIDGED_CHANNEL_ID);
+    try (var gateway = new DiscordGatewayStandIn(channelIDs);
+         var standIns = new ApiStandIns(Duration.ZERO, 0, gateway)) {
+      var port = freePort();
+      var args = new ArrayList<>(command);
+      args.addAll(List.of("--server.port=" + port,
+          "--spring.main.banner-mode=off",
+          "--line.bot.channel-token=smoke-test",
+          "--line.bot.channel-secret=" + CHANNEL_SECRET,
+          "--line.bot.handler.path=" + HANDLER_PATH,
+          "--line.bot.api-end-point=" + standIns.lineEndpoint(),
+          "--line.bot.blob-end-point=" + standIns.lineBlobEndpoint(),
+          "--browumpus.host=localhost",
+          "--browumpus.discord.token=smoke-test",
+          "--browumpus.discord.api-base-url=" + standIns.discordAPIBaseURL(),
+          "--browumpus.discord.gateway-url=" + gateway.url(),
+          "--browumpus.bridges=%s:%s".formatted(LINE_GROUP_ID, CHANNEL_ID),
+          "--browumpus.bridges-file=" + dir.resolve("bridges.json"),
+          "--browumpus.outbox.dir=" + dir.resolve("outbox")));
+      args.addAll(overrides);
+      var startedAt = System.nanoTime();
+      var process = new ProcessBuilder(args).redirectErrorStream(true)
+          .redirectOutput(log.toFile())
+          .start();
+      try {
+        var baseURI = URI.create("http://localhost:" + port);
+        var ready = await(() -> isReady(baseURI));
+        var readyIn = Duration.ofNanos(System.nanoTime() - startedAt);
+        var lineToDiscord = false;
+        var discordToLine = false;
+        if (ready) {
+          postLineWebhook(baseURI.resolve(HANDLER_PATH));
+          gateway.createMessage(UNBRIDGED_CHANNEL_ID, "lt-3");
+          gateway.createMessage(CHANNEL_ID, "lt-2");
+          lineToDiscord = await(() -> standIns.arrivals().containsKey(1L));
+          discordToLine = await(() -> standIns.arrivals().containsKey(2L))
+              && !standIns.arrivals().containsKey(3L);
+        }
+        var result = new Result(name, ready ? readyIn : null, residentBytes(process),
+            lineToDiscord, discordToLine);
+        if (!result.isPassed()) {
+          System.out.println("Failed on " + name + ", the log of the application follows");
+          System.out.println(Files.readString(log));
+        }
+        return result;
+      } finally {
+        process.destroy();
+        if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+          process.destroyForcibly();
+        }
+      }
+    } finally {
+      FileSystemUtils.deleteRecursively(dir);
+    }
+  }
+
+  private boolean isReady(@NotNull URI baseURI) {
+    try {
+      return httpClient.send(HttpRequest.newBuilder(baseURI.resolve(
+                  "/actuator/health/readiness")).build(), HttpResponse.BodyHandlers.discarding())
+          .statusCode() == 200;
+    } catch (IOException e) {
+      // not listening yet
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void postLineWebhook(@NotNull URI webhookURI) throws IOException, InterruptedException {
+    var body = """
+        {"destination":"U0","events":[{"type":"message","mode":"active","timestamp":%d,\
+        "source":{"type":"group","groupId":"%s","userId":"%s"},"webhookEventId":"lt-1",\
+        "deliveryContext":{"isRedelivery":false},"replyToken":"lt-1",\
+        "message":{"type":"text","id":"lt-1","text":"lt-1"}}]}"""
+        .formatted(System.currentTimeMillis(), LINE_GROUP_ID, LINE_USER_ID)
+        .getBytes(StandardCharsets.UTF_8);
+    var response = httpClient.send(HttpRequest.newBuilder(webhookURI)
+        .header("Content-Type", "application/json")
+        .header("X-Line-Signature", BaseEncoding.base64().encode(mac.doFinal(body)))
+        .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+        .build(), HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() != 200) {
+      System.out.println("LINE webhook rejected: %d %s".formatted(response.statusCode(),
+          response.body()));
+    }
+  }
+
+  private boolean await(@NotNull BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.nanoTime() + timeout.toNanos();
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    return true;
+  }
+
+  @Contract(pure = true)
+  static @NotNull String java() {
+    return Path.of(System.getProperty("java.home"), "bin", "java").toString();
+  }
+
+  // empty unless on Linux
+  private static @NotNull OptionalLong residentBytes(@NotNull Process process) {
+    try {
+      var status = Files.readString(Path.of("/proc", Long.toString(process.pid()), "status"));
+      return VM_RSS.matcher(status)
+          .results()
+          .mapToLong(result -> Long.parseLong(result.group(1)) * 1024)
+          .findFirst();
+    } catch (IOException e) {
+      return OptionalLong.empty();
+    }
+  }
+
+  static int freePort() throws IOException {
+    try (var socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  record Result(@NotNull String name, @Nullable Duration readyIn,
+                @NotNull OptionalLong residentBytes, boolean lineToDiscord, boolean discordToLine) {
+
+    static final String HEADER = "build     ready (ms)  RSS (MiB)  LINE->Discord  Discord->LINE";
+
+    @Contract(pure = true)
+    boolean isPassed() {
+      return readyIn != null && lineToDiscord && discordToLine;
+    }
+
+    @Contract(pure = true)
+    @NotNull String format() {
+      return "%-9s %10s  %9s  %-13s  %s".formatted(name,
+          readyIn == null ? "-" : Long.toString(readyIn.toMillis()),
+          residentBytes.isEmpty() ? "-"
+              : "%.1f".formatted(residentBytes.getAsLong() / (1024.0 * 1024)),
+          lineToDiscord ? "ok" : "FAILED",
+          discordToLine ? "ok" : "FAILED");
+    }
+  }
+
+  // --jar=target/browumpus-0.1.0.jar --timeout=60s, and any
+  // --browumpus.*, --spring.* or --logging.* options are passed to the application
+  record Options(@NotNull Path jar, @NotNull Duration timeout, @NotNull List<String> overrides) {
+
+    private static final Splitter OPTION_SPLITTER = Splitter.on('=').limit(2);
+
+    @Contract(pure = true)
+    static @NotNull Options parse(@NotNull String @NotNull [] args) {
+      var values = new HashMap<>(Map.of("jar", "target/browumpus-0.1.0.jar", "timeout", "60s"));
+      var overrides = new ArrayList<String>();
+      for (var arg : args) {
+        var option = OPTION_SPLITTER.splitToList(arg.replaceFirst("^--", ""));
+        if (option.size() != 2) {
+          throw new IllegalArgumentException("Invalid option: " + arg);
+        }
+        if (values.containsKey(option.get(0))) {
+          values.put(option.get(0), option.get(1));
+        } else if (option.get(0).startsWith("browumpus.") || option.get(0).startsWith("spring.")
+            || option.get(0).startsWith("logging.")) {
+          overrides.add(arg);
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      }
+      return new Options(Path.of(values.get("jar")),
+          DurationStyle.detectAndParse(values.get("timeout")),
+          List.copyOf(overrides));
+    }
+  }
+}
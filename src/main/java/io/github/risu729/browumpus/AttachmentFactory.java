@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.linecorp.bot.client.LineBlobClient;
+import io.github.risu729.browumpus.util.FileUtil;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import net.dv8tion.jda.api.utils.AttachmentProxy;
+import net.dv8tion.jda.api.utils.FileProxy;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// creates spooled attachments from their sources, both for new and restored messages
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@AllArgsConstructor
+public class AttachmentFactory {
+
+  @NotNull LineBlobClient blobClient;
+  @NotNull AttachmentSpool spool;
+  @NotNull MediaLinks mediaLinks;
+  @NotNull ThumbnailGenerator thumbnailGenerator;
+
+  @Contract(pure = true)
+  public @NotNull Message.Attachment create(@NotNull AttachmentSource source) {
+    return switch (source.origin()) {
+      case LINE -> createFromLine(source);
+      case DISCORD -> createFromDiscord(source);
+    };
+  }
+
+  // downloaded once and shared by retries
+  @Contract(pure = true)
+  @SuppressWarnings("resource")
+  private @NotNull Message.Attachment createFromLine(@NotNull AttachmentSource source) {
+    var stream = spool.spool("line:" + source.id(),
+        () -> blobClient.getMessageContent(source.id()).join().getStream());
+    return new Message.Attachment(source.filename(),
+        null,
+        stream,
+        null,
+        source.kind() == AttachmentSource.Kind.IMAGE ? thumbnailGenerator.thumbnail(stream) : null,
+        source);
+  }
+
+  // served by the media proxy instead of the Discord CDN, whose URLs expire
+  @Contract(pure = true)
+  private @NotNull Message.Attachment createFromDiscord(@NotNull AttachmentSource source) {
+    var key = "discord:" + source.id();
+    var filename = source.filename();
+    var url = checkNotNull(source.url());
+    var stream = spool.spool(key, () -> new AttachmentProxy(url).download().join());
+    if (source.kind() == AttachmentSource.Kind.OTHER) {
+      return new Message.Attachment(filename,
+          mediaLinks.uriOf(key, filename),
+          stream,
+          null,
+          null,
+          source);
+    }
+    Supplier<InputStream> original;
+    if (source.kind() == AttachmentSource.Kind.VIDEO) {
+      // the media proxy returns the first frame of videos as an image
+      var frameProxy = new FileProxy(url + (url.contains("?") ? "&" : "?") + "format=jpeg");
+      original = spool.spool(key + ":frame", () -> frameProxy.download().join());
+    } else {
+      original = stream;
+    }
+    var previewKey = key + ":preview";
+    return new Message.Attachment(filename,
+        mediaLinks.uriOf(key, filename),
+        stream,
+        mediaLinks.uriOf(previewKey, FileUtil.getFilenameWithoutExtension(filename) + ".jpg"),
+        spool.spool(previewKey, thumbnailGenerator.thumbnail(original)),
+        source);
+  }
+}
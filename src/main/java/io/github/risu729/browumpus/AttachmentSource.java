@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// where the content of an attachment can be downloaded again
+// kept in the outbox to restore attachments after restart
+public record AttachmentSource(@NotNull Origin origin, @NotNull String id,
+                               @NotNull String filename, @Nullable String url,
+                               @NotNull Kind kind) {
+
+  @SuppressWarnings("PublicInnerClass")
+  public enum Origin {
+    // id is the message ID of the LINE message
+    LINE,
+    // id is the attachment ID, and url is the media proxy URL
+    DISCORD
+  }
+
+  @SuppressWarnings("PublicInnerClass")
+  public enum Kind {
+    IMAGE, VIDEO, OTHER
+  }
+}
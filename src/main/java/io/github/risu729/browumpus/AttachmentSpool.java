@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import io.github.risu729.browumpus.util.FileUtil;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+// downloads each attachment once and serves it to every reader, including retries
+// payloads above the threshold are written to files under TEMP_DIR, which is wiped on startup, and
+// so are smaller ones once the payloads kept in memory reach their own limit
+// sources are remembered for a while so that evicted attachments can be served by the media proxy,
+// up to a number of them
+@Slf4j
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class AttachmentSpool {
+
+  @NotNull Path dir = FileUtil.createTempDir();
+  // access ordered for LRU eviction, guarded by itself
+  @NotNull Map<String, CompletableFuture<Entry>> entries = new LinkedHashMap<>(16, 0.75f, true);
+  @NotNull Cache<String, Supplier<InputStream>> sources;
+  int threshold;
+  long maxTotalSize;
+  long maxMemorySize;
+  @NotNull MeterRegistry meterRegistry;
+  // guarded by entries
+  @NonFinal long totalSize;
+  // of the payloads in memory, counted when written rather than when loaded, guarded by entries
+  @NonFinal long memorySize;
+
+  public AttachmentSpool(@Value("${browumpus.spool.threshold}") @NotNull DataSize threshold,
+      @Value("${browumpus.spool.max-total-size}") @NotNull DataSize maxTotalSize,
+      @Value("${browumpus.spool.max-memory-size}") @NotNull DataSize maxMemorySize,
+      @Value("${browumpus.spool.source-retention}") @NotNull Duration sourceRetention,
+      @Value("${browumpus.spool.max-sources}") long maxSources,
+      @NotNull MeterRegistry meterRegistry) {
+    this.threshold = Math.toIntExact(threshold.toBytes());
+    this.maxTotalSize = maxTotalSize.toBytes();
+    this.maxMemorySize = maxMemorySize.toBytes();
+    // a source only holds a few references, but one is added for every attachment
+    this.sources = CacheBuilder.newBuilder()
+        .expireAfterWrite(sourceRetention)
+        .maximumSize(maxSources)
+        .build();
+    this.meterRegistry = meterRegistry;
+    Gauge.builder("attachment.spool.size", this, AttachmentSpool::totalSize)
+        .description("Total size of the spooled attachments")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("attachment.spool.memory.size", this, AttachmentSpool::memorySize)
+        .description("Size of the spooled attachments kept in memory")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  public @NotNull Supplier<InputStream> spool(@NotNull String key,
+      @NotNull Supplier<InputStream> source) {
+    sources.put(key, source);
+    return () -> open(key, source);
+  }
+
+  // returns empty if the source of the key is unknown or expired
+  public @NotNull Optional<Entry> find(@NotNull String key) {
+    var source = sources.getIfPresent(key);
+    if (source == null) {
+      return Optional.empty();
+    }
+    try {
+      var entry = load(key, source);
+      if (entry.file() != null && !Files.exists(entry.file())) {
+        // evicted after loaded, so download again
+        invalidate(key);
+        entry = load(key, source);
+      }
+      return Optional.of(entry);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public @NotNull InputStream open(@NotNull String key, @NotNull Supplier<InputStream> source) {
+    try {
+      return load(key, source).open();
+    } catch (NoSuchFileException e) {
+      // evicted after loaded, so download again
+      invalidate(key);
+      try {
+        return load(key, source).open();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public void invalidate(@NotNull String key) {
+    CompletableFuture<Entry> removed;
+    synchronized (entries) {
+      removed = entries.remove(key);
+    }
+    if (removed != null && removed.isDone() && !removed.isCompletedExceptionally()) {
+      release(removed.join());
+    }
+  }
+
+  private @NotNull Entry load(@NotNull String key, @NotNull Supplier<InputStream> source)
+      throws IOException {
+    CompletableFuture<Entry> future;
+    var loading = false;
+    synchronized (entries) {
+      future = entries.get(key);
+      if (future == null) {
+        future = new CompletableFuture<>();
+        entries.put(key, future);
+        loading = true;
+      }
+    }
+    if (loading) {
+      try {
+        var entry = timeLoad(key, source);
+        synchronized (entries) {
+          totalSize += entry.size();
+        }
+        future.complete(entry);
+        evict(key);
+      } catch (IOException | RuntimeException e) {
+        synchronized (entries) {
+          entries.remove(key, future);
+        }
+        future.completeExceptionally(e);
+        throw e;
+      }
+    }
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      }
+      throw e;
+    }
+  }
+
+  // tagged by the origin and the variant of the key, such as "discord" and "preview" for
+  // "discord:<ID>:preview", so that the time of LINE blobs is the download time
+  private @NotNull Entry timeLoad(@NotNull String key, @NotNull Supplier<InputStream> source)
+      throws IOException {
+    var parts = key.split(":");
+    var origin = parts[0];
+    var variant = parts.length > 2 ? parts[2] : "original";
+    var sample = Timer.start();
+    Entry entry;
+    try (var span = MessageTrace.span(variant.equals("original") ? "download" : variant)) {
+      entry = write(key, source);
+    }
+    sample.stop(Timer.builder("attachment.spool.load")
+        .description("Time to download or generate an attachment into the spool")
+        .tag("origin", origin)
+        .tag("variant", variant)
+        .register(meterRegistry));
+    DistributionSummary.builder("attachment.spool.load.size")
+        .description("Size of an attachment loaded into the spool")
+        .baseUnit("bytes")
+        .tag("origin", origin)
+        .tag("variant", variant)
+        .register(meterRegistry)
+        .record(entry.size());
+    return entry;
+  }
+
+  private @NotNull Entry write(@NotNull String key, @NotNull Supplier<InputStream> source)
+      throws IOException {
+    try (var stream = source.get()) {
+      // keep small payloads in memory while they fit
+      var head = stream.readNBytes(threshold + 1);
+      if (head.length <= threshold && reserveMemory(head.length)) {
+        return new Entry(head, null, head.length, Instant.now());
+      }
+
+      var name = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+      var part = FileUtil.generateUniquePathInDir(dir.resolve(name + ".part"));
+      long size = head.length;
+      try (var in = Channels.newChannel(stream);
+           var out = FileChannel.open(part, StandardOpenOption.CREATE_NEW,
+               StandardOpenOption.WRITE)) {
+        out.write(ByteBuffer.wrap(head));
+        long transferred;
+        while ((transferred = out.transferFrom(in, size, threshold)) > 0) {
+          size += transferred;
+        }
+      } catch (IOException e) {
+        FileUtil.deleteQuietly(part);
+        throw e;
+      }
+      // move after completely written so that a partial file is never served
+      var file = Files.move(part, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      log.debug("Spooled {} ({} bytes) to {}", key, size, file);
+      return new Entry(null, file, size, Instant.now());
+    }
+  }
+
+  private long totalSize() {
+    synchronized (entries) {
+      return totalSize;
+    }
+  }
+
+  private long memorySize() {
+    synchronized (entries) {
+      return memorySize;
+    }
+  }
+
+  private boolean reserveMemory(long size) {
+    synchronized (entries) {
+      if (memorySize + size > maxMemorySize) {
+        return false;
+      }
+      memorySize += size;
+      return true;
+    }
+  }
+
+  private void evict(@NotNull String loadedKey) {
+    synchronized (entries) {
+      var iterator = entries.entrySet().iterator();
+      while (totalSize > maxTotalSize && iterator.hasNext()) {
+        var eldest = iterator.next();
+        var future = eldest.getValue();
+        // skip entries being downloaded and the one just loaded
+        if (eldest.getKey().equals(loadedKey) || !future.isDone()
+            || future.isCompletedExceptionally()) {
+          continue;
+        }
+        iterator.remove();
+        release(future.join());
+      }
+    }
+  }
+
+  private void release(@NotNull Entry entry) {
+    synchronized (entries) {
+      totalSize -= entry.size();
+      if (entry.data() != null) {
+        memorySize -= entry.size();
+      }
+    }
+    // streams already opened keep reading the deleted file
+    if (entry.file() != null) {
+      FileUtil.deleteQuietly(entry.file());
+    }
+  }
+
+  @PreDestroy
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      totalSize = 0;
+      memorySize = 0;
+    }
+    FileUtil.deleteQuietly(dir);
+  }
+
+  @SuppressWarnings({"ArrayRecordComponent", "PublicInnerClass"})
+  public record Entry(byte @Nullable [] data, @Nullable Path file, long size,
+                      @NotNull Instant createdAt) {
+
+    @NotNull InputStream open() throws IOException {
+      if (data != null) {
+        return new ByteArrayInputStream(data);
+      }
+      assert file != null;
+      return Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    // supports random access for range requests
+    @Contract(pure = true)
+    public @NotNull Resource resource() {
+      if (data != null) {
+        return new ByteArrayResource(data);
+      }
+      assert file != null;
+      return new FileSystemResource(file);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Supplier;
+
+// counts and times the messages received from either side, tagged by the side and the type
+// the meters are looked up on each call, which the registry caches by name and tags
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@AllArgsConstructor
+public class BridgeMetrics {
+
+  @NotNull MeterRegistry meterRegistry;
+
+  public void received(@NotNull String source, @NotNull String type) {
+    Counter.builder("bridge.messages.received")
+        .description("Number of messages received to bridge")
+        .tag("source", source)
+        .tag("type", type)
+        .register(meterRegistry)
+        .increment();
+  }
+
+  // unsupported messages are counted and rethrown
+  public @NotNull Message convert(@NotNull String source, @NotNull String type,
+      @NotNull Supplier<Message> conversion) {
+    try {
+      return Timer.builder("bridge.conversion")
+          .description("Time to convert a received message, including profile lookups")
+          .tag("source", source)
+          .tag("type", type)
+          .register(meterRegistry)
+          .record(conversion);
+    } catch (UnsupportedOperationException e) {
+      Counter.builder("bridge.messages.unsupported")
+          .description("Number of messages which cannot be bridged")
+          .tag("source", source)
+          .tag("type", type)
+          .register(meterRegistry)
+          .increment();
+      throw e;
+    }
+  }
+}
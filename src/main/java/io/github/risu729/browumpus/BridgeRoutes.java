@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// maps LINE groups or rooms to Discord channels one to one
+// loaded from a JSON object of "<LINE group or room ID>": "<Discord channel ID>" if the file
+// exists, otherwise from comma separated pairs of "<LINE group or room ID>:<Discord channel ID>"
+// the file is watched and the routes are swapped atomically, so lookups never lock
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class BridgeRoutes {
+
+  // also used to validate the settings
+  static final Splitter PAIR_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+  static final Splitter ID_SPLITTER = Splitter.on(':').trimResults();
+  // wait for the writer to finish before reading a changed file
+  private static final long SETTLE_MILLIS = 100;
+
+  @NotNull String fallback;
+  @NotNull Path file;
+  @NotNull ObjectMapper objectMapper;
+  // LINE ID to Discord channel ID
+  @NotNull AtomicReference<ImmutableBiMap<String, String>> routes;
+  @Nullable WatchService watchService;
+
+  public BridgeRoutes(@NotNull BrowumpusProperties properties,
+      @NotNull ObjectMapper objectMapper) throws IOException {
+    this.fallback = Objects.requireNonNullElse(properties.bridges(), "");
+    this.file = properties.bridgesFile().toAbsolutePath();
+    this.objectMapper = objectMapper;
+    this.routes = new AtomicReference<>(load());
+    log.info("Loaded {} bridges", routes.get().size());
+
+    var dir = this.file.getParent();
+    if (Files.isDirectory(dir)) {
+      watchService = FileSystems.getDefault().newWatchService();
+      dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      new ThreadFactoryBuilder().setNameFormat("bridge-watcher-%d")
+          .setDaemon(true)
+          .build()
+          .newThread(this::watch)
+          .start();
+    } else {
+      log.warn("Not watching bridges, {} does not exist", dir);
+      watchService = null;
+    }
+  }
+
+  @Contract(pure = true)
+  public @NotNull Optional<String> discordChannelOf(@NotNull String lineID) {
+    return Optional.ofNullable(routes.get().get(lineID));
+  }
+
+  @Contract(pure = true)
+  public @NotNull Optional<String> lineIDOf(@NotNull String discordChannelID) {
+    return Optional.ofNullable(routes.get().inverse().get(discordChannelID));
+  }
+
+  @Contract(pure = true)
+  public @NotNull Set<String> discordChannelIDs() {
+    return routes.get().values();
+  }
+
+  @PreDestroy
+  public void close() throws IOException {
+    if (watchService != null) {
+      watchService.close();
+    }
+  }
+
+  private void watch() {
+    assert watchService != null;
+    try {
+      while (true) {
+        var key = watchService.take();
+        var changed = key.pollEvents()
+            .stream()
+            .anyMatch(event -> file.getFileName().equals(event.context()));
+        key.reset();
+        if (changed) {
+          TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+          reload();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException ignored) {
+      // closed on shutdown
+    }
+  }
+
+  private void reload() {
+    ImmutableBiMap<String, String> loaded;
+    try {
+      loaded = load();
+    } catch (IOException | RuntimeException e) {
+      // keep the current routes until the file is fixed
+      log.error("Failed to reload bridges from {}", file, e);
+      return;
+    }
+    var previous = routes.getAndSet(loaded);
+    var difference = Maps.difference(previous, loaded);
+    if (difference.areEqual()) {
+      return;
+    }
+    log.info("Reloaded bridges, added: {}, removed: {}, changed: {}",
+        difference.entriesOnlyOnRight(),
+        difference.entriesOnlyOnLeft(),
+        difference.entriesDiffering());
+  }
+
+  private @NotNull ImmutableBiMap<String, String> load() throws IOException {
+    Map<String, String> pairs;
+    if (Files.exists(file)) {
+      pairs = objectMapper.readValue(file.toFile(), new TypeReference<Map<String, String>>() {});
+    } else {
+      pairs = Maps.newLinkedHashMap();
+      for (var pair : PAIR_SPLITTER.split(fallback)) {
+        var ids = ID_SPLITTER.splitToList(pair);
+        // ":" is left by the unset environment variables
+        if (ids.stream().allMatch(String::isEmpty)) {
+          continue;
+        }
+        checkArgument(ids.size() == 2, "Invalid bridge: %s", pair);
+        checkArgument(pairs.put(ids.get(0), ids.get(1)) == null, "Duplicate bridge: %s", pair);
+      }
+      if (pairs.isEmpty()) {
+        log.warn("No bridges are configured, {} does not exist and browumpus.bridges is empty",
+            file);
+      }
+    }
+    pairs.forEach((lineID, channelID) -> checkArgument(!lineID.isBlank() && !channelID.isBlank(),
+        "Invalid bridge: %s:%s", lineID, channelID));
+    // throws if a Discord channel ID is bridged twice
+    return ImmutableBiMap.copyOf(pairs);
+  }
+}
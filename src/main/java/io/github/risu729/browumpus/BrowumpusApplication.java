@@ -3,6 +3,8 @@ package io.github.risu729.browumpus;
 import io.github.risu729.browumpus.util.FileUtil;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.ComponentScan;
 
 import java.io.IOException;
@@ -11,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 @ComponentScan({"io.github.risu729.browumpus", "com.linecorp.bot.spring.boot"})
 public class BrowumpusApplication {
 
@@ -18,6 +21,7 @@ public class BrowumpusApplication {
   public static final Path TEMP_DIR = Path.of(System.getProperty("java.io.tmpdir"), "browumpus");
   @SuppressWarnings({"WeakerAccess", "StaticMethodOnlyUsedInOneClass"})
   public static final Path RESOURCES_DIR = Path.of("src", "main", "resources");
+  private static final int STARTUP_STEPS = 2048;
 
   public static void main(String[] args) {
     FileUtil.deleteQuietly(TEMP_DIR);
@@ -28,7 +32,10 @@ public class BrowumpusApplication {
     }
     Runtime.getRuntime().addShutdownHook(new Thread(BrowumpusApplication::shutdown));
 
-    SpringApplication.run(BrowumpusApplication.class, args);
+    var application = new SpringApplication(BrowumpusApplication.class);
+    // the steps of the context startup such as bean instantiations for the startup endpoint
+    application.setApplicationStartup(new BufferingApplicationStartup(STARTUP_STEPS));
+    application.run(args);
   }
 
   private static void shutdown() {
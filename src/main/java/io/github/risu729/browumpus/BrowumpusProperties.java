@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+// settings resolved from the environment once at startup
+// all problems are reported together when binding fails, instead of when a message arrives
+@ConfigurationProperties("browumpus")
+public record BrowumpusProperties(@Nullable String host, @Nullable String bridges,
+                                  @NotNull Path bridgesFile, @NotNull Line line,
+                                  @NotNull Discord discord) {
+
+  public BrowumpusProperties {
+    var problems = new ArrayList<String>();
+    if (host == null || host.isBlank()) {
+      problems.add("browumpus.host is not set, set RAILWAY_STATIC_URL to the public host name");
+    }
+    if (!Files.exists(bridgesFile)) {
+      var reported = problems.size();
+      if (validateBridges(bridges, problems) == 0 && problems.size() == reported) {
+        problems.add("No bridges are configured, set LINE_GROUP_ID and LINE_TRANSFER_CHANNEL_ID,"
+            + " set BROWUMPUS_BRIDGES, or create " + bridgesFile.toAbsolutePath());
+      }
+    }
+    if (line.channelToken() == null || line.channelToken().isBlank()) {
+      problems.add("line.bot.channel-token is not set, set LINE_CHANNEL_ACCESS_TOKEN");
+    }
+    if (line.channelSecret() == null || line.channelSecret().isBlank()) {
+      problems.add("line.bot.channel-secret is not set, set LINE_CHANNEL_SECRET");
+    }
+    if (discord.token() == null || discord.token().isBlank()) {
+      problems.add("browumpus.discord.token is not set, set DISCORD_TOKEN");
+    }
+    // JDA appends the routes to the base URL as is
+    if (!discord.apiBaseUrl().endsWith("/")) {
+      problems.add("browumpus.discord.api-base-url must end with /");
+    }
+    if (!problems.isEmpty()) {
+      throw new IllegalArgumentException("Invalid settings:\n      - "
+          + String.join("\n      - ", problems));
+    }
+  }
+
+  // the same format as BridgeRoutes reads, where ":" is left by the unset environment variables
+  // returns the number of valid bridges
+  private static int validateBridges(@Nullable String bridges, @NotNull List<String> problems) {
+    if (bridges == null) {
+      return 0;
+    }
+    var lineIDs = new HashSet<String>();
+    var channelIDs = new HashSet<String>();
+    for (var pair : BridgeRoutes.PAIR_SPLITTER.split(bridges)) {
+      var ids = BridgeRoutes.ID_SPLITTER.splitToList(pair);
+      if (ids.stream().allMatch(String::isEmpty)) {
+        continue;
+      }
+      if (ids.size() != 2 || ids.get(0).isEmpty() || ids.get(1).isEmpty()) {
+        problems.add("Incomplete bridge \"" + pair + "\" in browumpus.bridges, expected"
+            + " <LINE group or room ID>:<Discord channel ID>");
+      } else if (!lineIDs.add(ids.get(0)) || !channelIDs.add(ids.get(1))) {
+        problems.add("Duplicate bridge \"" + pair + "\" in browumpus.bridges");
+      }
+    }
+    return lineIDs.size();
+  }
+
+  // copied from line.bot.*, which is bound by the LINE SDK
+  @SuppressWarnings("PublicInnerClass")
+  public record Line(@Nullable String channelToken, @Nullable String channelSecret) {}
+
+  @SuppressWarnings("PublicInnerClass")
+  public record Discord(@Nullable String token, @NotNull String apiBaseUrl,
+                        @NotNull String gatewayUrl) {}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+// coordinates the nodes of a cluster through exclusive locks on files in a directory shared by
+// them, such as a volume mounted on every node or a local directory for nodes on one host
+// a lease is held while its lock is, and the OS releases the lock when the node dies, so a
+// restarted node takes the lease over without any expiry
+// the file of a lease contains the URL of the node holding it, for the other nodes to reach it,
+// and is emptied when released
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class ClusterLeases {
+
+  boolean enabled;
+  @NotNull Path dir;
+  @NotNull String nodeURL;
+  // guarded by this, since closing any channel of a file releases the locks of this process on it
+  @NotNull Map<String, Lease> held = new HashMap<>();
+
+  public ClusterLeases(@Value("${browumpus.cluster.enabled}") boolean enabled,
+      @Value("${browumpus.cluster.dir}") @NotNull Path dir,
+      @Value("${browumpus.cluster.node-url}") @NotNull String nodeURL) {
+    this.enabled = enabled;
+    this.dir = dir.toAbsolutePath();
+    this.nodeURL = nodeURL;
+  }
+
+  @Contract(pure = true)
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Contract(pure = true)
+  public @NotNull String nodeURL() {
+    return nodeURL;
+  }
+
+  // returns immediately whether acquired or not
+  public synchronized boolean tryAcquire(@NotNull String name) throws IOException {
+    checkEnabled();
+    if (held.containsKey(name)) {
+      return true;
+    }
+    Files.createDirectories(dir);
+    var channel = FileChannel.open(fileOf(name), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    var lock = channel.tryLock();
+    if (lock == null) {
+      channel.close();
+      return false;
+    }
+    channel.truncate(0);
+    channel.write(StandardCharsets.UTF_8.encode(nodeURL), 0);
+    channel.force(true);
+    held.put(name, new Lease(channel, lock));
+    log.info("Acquired lease {}", name);
+    return true;
+  }
+
+  public synchronized boolean isHeld(@NotNull String name) {
+    return held.containsKey(name);
+  }
+
+  public synchronized void release(@NotNull String name) throws IOException {
+    var lease = held.remove(name);
+    if (lease != null) {
+      lease.close();
+      log.info("Released lease {}", name);
+    }
+  }
+
+  // the URL of the node holding the lease, or empty if released or not acquired yet
+  // read without the lock, since probing it would take it for a moment and make the holder fail
+  // to acquire it, so the URL of a dead node is returned until the lease is taken over, and
+  // requests to it fail as those to a node which does not hold the lease anymore
+  public synchronized @NotNull Optional<String> holderOf(@NotNull String name)
+      throws IOException {
+    checkEnabled();
+    if (held.containsKey(name)) {
+      return Optional.of(nodeURL);
+    }
+    var file = fileOf(name);
+    if (!Files.exists(file)) {
+      return Optional.empty();
+    }
+    return Optional.of(Files.readString(file, StandardCharsets.UTF_8))
+        .filter(url -> !url.isBlank());
+  }
+
+  @PreDestroy
+  public synchronized void close() throws IOException {
+    for (var lease : held.values()) {
+      lease.close();
+    }
+    held.clear();
+  }
+
+  private void checkEnabled() {
+    if (!enabled) {
+      throw new IllegalStateException("Cluster is not enabled");
+    }
+  }
+
+  @Contract(pure = true)
+  private @NotNull Path fileOf(@NotNull String name) {
+    return dir.resolve(name + ".lock");
+  }
+
+  private record Lease(@NotNull FileChannel channel, @NotNull FileLock lock) {
+
+    void close() throws IOException {
+      // emptied while locked, for the other nodes not to reach this node for the lease
+      channel.truncate(0);
+      channel.force(true);
+      // releases the lock
+      channel.close();
+    }
+  }
+}
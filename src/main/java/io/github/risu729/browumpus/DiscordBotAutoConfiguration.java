@@ -8,62 +8,87 @@
 
 package io.github.risu729.browumpus;
 
-import club.minnced.discord.webhook.external.JDAWebhookClient;
-import com.google.common.collect.MoreCollectors;
-import io.github.risu729.browumpus.util.Envs;
 import io.github.risu729.browumpus.util.UnmodifiableJDA;
-import net.dv8tion.jda.api.JDA;
+import lombok.extern.slf4j.Slf4j;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Activity;
-import net.dv8tion.jda.api.entities.Icon;
-import net.dv8tion.jda.api.entities.channel.attribute.IWebhookContainer;
 import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.requests.RestConfig;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.Compression;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.utils.SessionControllerAdapter;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.util.EnumSet;
+import java.util.Set;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkArgument;
 
+@Slf4j
 @Configuration
 public class DiscordBotAutoConfiguration {
 
-  private static final String WEBHOOK_NAME = "Browumpus";
+  // completed when the guilds and the channels are loaded
+  public static final String GATEWAY_TASK = "discordGateway";
 
+  // JDA logs in on its own threads, and the startup task only waits for it
+  // nothing but the guilds, the channels and the self member is cached by default, as only the
+  // messages of the bridged channels are used
+  // if clustered, each node logs in as one of the shards, and fails to start if all are taken
   @Bean
-  public @NotNull UnmodifiableJDA jda(@NotNull DiscordListener listener)
-      throws InterruptedException {
-    var jda = JDABuilder.createLight(Envs.getEnv("DISCORD_TOKEN"),
+  public @NotNull UnmodifiableJDA jda(@NotNull DiscordListener listener,
+      @NotNull DiscordGatewayFilter gatewayFilter, @NotNull DiscordGuildMetrics guildMetrics,
+      @NotNull BrowumpusProperties properties, @NotNull StartupTasks startupTasks,
+      @NotNull ClusterLeases leases,
+      @Value("${browumpus.cluster.shard-total}") int shardTotal,
+      @Value("${browumpus.discord.cache.flags}") @NotNull Set<CacheFlag> cacheFlags,
+      @Value("${browumpus.discord.compression}") @NotNull Compression compression,
+      @Value("${browumpus.discord.filter-messages}") boolean filterMessages) throws IOException {
+    var builder = JDABuilder.createLight(properties.discord().token(),
             GatewayIntent.MESSAGE_CONTENT,
             GatewayIntent.GUILD_MESSAGES)
+        // without the GUILD_MEMBERS intent, the members would never be evicted once cached
+        .setMemberCachePolicy(MemberCachePolicy.NONE)
+        .setChunkingFilter(ChunkingFilter.NONE)
+        .disableCache(EnumSet.allOf(CacheFlag.class))
+        .enableCache(cacheFlags)
+        .setCompression(compression)
+        .setRestConfig(new RestConfig().setBaseUrl(properties.discord().apiBaseUrl()))
+        .setSessionController(new SessionControllerAdapter() {
+          // the default is fixed to Discord regardless of the REST config
+          @Override
+          public @NotNull String getGateway() {
+            return properties.discord().gatewayUrl();
+          }
+        })
         .setActivity(Activity.competing("LINE"))
-        .addEventListeners(listener)
-        .setEnableShutdownHook(false) // disable because Spring Boot will handle it
-        .build();
-    jda.awaitReady();
+        .addEventListeners(listener, guildMetrics)
+        .setEnableShutdownHook(false); // disable because Spring Boot will handle it
+    if (leases.isEnabled()) {
+      builder.useSharding(acquireShard(leases, shardTotal), shardTotal);
+    }
+    var jda = builder.build();
+    gatewayFilter.install(jda, filterMessages);
+    startupTasks.run(GATEWAY_TASK, jda::awaitReady);
     return UnmodifiableJDA.of(jda);
   }
 
-  @Bean
-  public @NotNull JDAWebhookClient webhookClient(@NotNull JDA jda) {
-    var discordChannel = checkNotNull(jda.getChannelById(IWebhookContainer.class,
-        Envs.getEnv("LINE_TRANSFER_CHANNEL_ID")));
-    return JDAWebhookClient.from(discordChannel.retrieveWebhooks()
-        .complete()
-        .stream()
-        .filter(webhook -> webhook.getName().equals(WEBHOOK_NAME))
-        .collect(MoreCollectors.toOptional())
-        .orElseGet(() -> {
-          try {
-            return discordChannel.createWebhook(WEBHOOK_NAME)
-                .setAvatar(Icon.from(BrowumpusApplication.RESOURCES_DIR.resolve("browumpus.png")
-                    .toFile()))
-                .complete();
-          } catch (IOException e) {
-            throw new UncheckedIOException(e);
-          }
-        }));
+  // the shard is held until the node stops, as JDA cannot switch shards
+  private static int acquireShard(@NotNull ClusterLeases leases, int shardTotal)
+      throws IOException {
+    checkArgument(shardTotal > 0);
+    for (var shard = 0; shard < shardTotal; shard++) {
+      if (leases.tryAcquire("shard-" + shard)) {
+        log.info("Logging in as shard {} of {}", shard, shardTotal);
+        return shard;
+      }
+    }
+    throw new IllegalStateException("All %d shards are held by other nodes".formatted(shardTotal));
   }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import net.dv8tion.jda.internal.JDAImpl;
+import net.dv8tion.jda.internal.handle.SocketHandler;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+
+// counts the gateway events per guild and type, and drops the message events of the channels
+// which are not bridged while they are still JSON, before JDA builds the messages, the authors
+// and the events which DiscordListener would ignore anyway
+// JDA has no public hook before the entities are built, so its internal socket handlers are wrapped
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@AllArgsConstructor
+public class DiscordGatewayFilter {
+
+  // delivered for every channel with the GUILD_MESSAGES intent, and all have channel_id
+  private static final Set<String> MESSAGE_EVENTS = Set.of("MESSAGE_CREATE",
+      "MESSAGE_UPDATE",
+      "MESSAGE_DELETE",
+      "MESSAGE_DELETE_BULK");
+
+  @NotNull BridgeRoutes routes;
+  @NotNull MeterRegistry meterRegistry;
+
+  // called right after JDA is built, the handlers are only read on the gateway thread and replaced
+  // without changing the keys, so the first events may still reach the unwrapped handlers
+  public void install(@NotNull JDA jda, boolean filterMessages) {
+    var handlers = ((JDAImpl) jda).getClient().getHandlers();
+    handlers.replaceAll((type, handler) -> new Wrapper((JDAImpl) jda, type, handler,
+        filterMessages && MESSAGE_EVENTS.contains(type)));
+    log.info("Installed gateway filter on {} event types, message filtering: {}",
+        handlers.size(), filterMessages);
+  }
+
+  private void count(@NotNull String type, @NotNull String guildID, @NotNull String outcome) {
+    Counter.builder("discord.gateway.events")
+        .description("Number of gateway events received, by guild and type")
+        .tag("guild", guildID)
+        .tag("type", type)
+        .tag("outcome", outcome)
+        .register(meterRegistry)
+        .increment();
+  }
+
+  @Contract(pure = true)
+  private static @NotNull String guildIDOf(@NotNull String type, @NotNull DataObject content) {
+    var key = type.startsWith("GUILD_") && !content.hasKey("guild_id") ? "id" : "guild_id";
+    return content.getString(key, "none");
+  }
+
+  @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+  private final class Wrapper extends SocketHandler {
+
+    @NotNull String type;
+    @NotNull SocketHandler handler;
+    boolean filterMessages;
+
+    Wrapper(@NotNull JDAImpl api, @NotNull String type, @NotNull SocketHandler handler,
+        boolean filterMessages) {
+      super(api);
+      this.type = type;
+      this.handler = handler;
+      this.filterMessages = filterMessages;
+    }
+
+    // the guild setup is left to the wrapped handler, which caches the events itself
+    @Override
+    protected @Nullable Long handleInternally(@NotNull DataObject content) {
+      var guildID = guildIDOf(type, content);
+      if (filterMessages
+          && !routes.discordChannelIDs().contains(content.getString("channel_id", ""))) {
+        count(type, guildID, "filtered");
+        return null;
+      }
+      count(type, guildID, "handled");
+      handler.handle(responseNumber, allContent);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.events.guild.GuildJoinEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.GuildReadyEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+// reports the number of entities JDA caches for each guild, which the memory of the bot grows with
+// the guilds are looked up on each scrape, since JDA replaces them when the session is recreated
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@RequiredArgsConstructor
+public class DiscordGuildMetrics extends ListenerAdapter {
+
+  private static final Map<String, ToLongFunction<Guild>> KINDS = Map.of("channels",
+      guild -> guild.getChannels().size(),
+      "threads", guild -> guild.getThreadChannelCache().size(),
+      "roles", guild -> guild.getRoleCache().size(),
+      "members", guild -> guild.getMemberCache().size(),
+      "emojis", guild -> guild.getEmojiCache().size(),
+      "stickers", guild -> guild.getStickerCache().size());
+
+  @NotNull MeterRegistry meterRegistry;
+  // guild ID to the gauges
+  @NotNull Map<String, List<Meter>> gauges = new ConcurrentHashMap<>();
+
+  @Override
+  public void onGuildReady(@NotNull GuildReadyEvent event) {
+    register(event.getJDA(), event.getGuild().getId());
+  }
+
+  @Override
+  public void onGuildJoin(@NotNull GuildJoinEvent event) {
+    register(event.getJDA(), event.getGuild().getId());
+  }
+
+  @Override
+  public void onGuildLeave(@NotNull GuildLeaveEvent event) {
+    Optional.ofNullable(gauges.remove(event.getGuild().getId()))
+        .ifPresent(meters -> meters.forEach(meterRegistry::remove));
+  }
+
+  private void register(@NotNull JDA jda, @NotNull String guildID) {
+    gauges.computeIfAbsent(guildID, unused -> KINDS.entrySet()
+        .stream()
+        .<Meter>map(kind -> Gauge.builder("discord.guild.cache.size", jda,
+                value -> Optional.ofNullable(value.getGuildById(guildID))
+                    .map(guild -> kind.getValue().applyAsLong(guild))
+                    .orElse(0L))
+            .description("Number of entities cached by JDA for a guild")
+            .tag("guild", guildID)
+            .tag("kind", kind.getKey())
+            .register(meterRegistry))
+        .toList());
+  }
+}
@@ -8,7 +8,7 @@
 
 package io.github.risu729.browumpus;
 
-import io.github.risu729.browumpus.util.Envs;
+import com.google.common.annotations.VisibleForTesting;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.experimental.FieldDefaults;
@@ -24,6 +24,7 @@ import org.springframework.stereotype.Controller;
 
 import java.net.URI;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 @Slf4j
 @Controller
@@ -31,11 +32,17 @@ import java.util.Optional;
 @AllArgsConstructor
 public class DiscordListener extends ListenerAdapter {
 
-  @NotNull LineSender lineSender;
+  @NotNull BridgeRoutes routes;
+  @NotNull MessageRelay relay;
+  @NotNull MessageOutbox outbox;
+  @NotNull AttachmentFactory attachmentFactory;
+  @NotNull BridgeMetrics metrics;
+  @NotNull TraceRecorder traces;
 
   @Override
   public void onMessageReceived(@NotNull MessageReceivedEvent event) {
-    if (!event.getChannel().getId().equals(Envs.getEnv("LINE_TRANSFER_CHANNEL_ID"))) {
+    var lineID = routes.lineIDOf(event.getChannel().getId());
+    if (lineID.isEmpty()) {
       return;
     }
     // ignore self messages or webhook messages (which might be sent by this bot)
@@ -53,13 +60,48 @@ public class DiscordListener extends ListenerAdapter {
     }
 
     var message = event.getMessage();
-    log.info("Received message from Discord: {}", message);
+    var type = message.getAttachments().isEmpty() ? "text" : "attachment";
+    metrics.received("discord", type);
+    var key = "discord:" + message.getId();
+    // the message is only formatted if debug is enabled, as it contains the content and the author
+    log.atInfo()
+        .addKeyValue("key", key)
+        .addKeyValue("type", type)
+        .addKeyValue("channelID", event.getChannel().getId())
+        .addKeyValue("length", message.getContentStripped().length())
+        .addKeyValue("attachments", message.getAttachments().size())
+        .addKeyValue("attachmentBytes", message.getAttachments()
+            .stream()
+            .mapToLong(net.dv8tion.jda.api.entities.Message.Attachment::getSize)
+            .sum())
+        .log("Received message from Discord");
+    log.debug("Received message from Discord: {}", message);
+    var trace = traces.start(key, "discord", type);
+    var relaying = trace.start("relay");
 
-    lineSender.send(convertToMessage(message));
+    // return immediately not to stall later gateway events on the event thread
+    // messages in the same channel are relayed in order
+    var submitted = relay.submit("discord", event.getChannel().getId(), () -> {
+      relaying.close();
+      trace.runDelivery(() -> {
+        Message converted;
+        try (var converting = trace.start("convert")) {
+          converted = metrics.convert("discord", type, () -> convertToMessage(message));
+        }
+        return outbox.deliver(key,
+            MessageOutbox.Destination.LINE,
+            lineID.get(),
+            converted.withTrace(trace));
+      });
+    });
+    if (!submitted) {
+      trace.finish(new RejectedExecutionException("Relay queue is full"));
+    }
   }
 
+  @VisibleForTesting
   @Contract(pure = true)
-  private @NotNull Message convertToMessage(@NotNull net.dv8tion.jda.api.entities.Message message) {
+  @NotNull Message convertToMessage(@NotNull net.dv8tion.jda.api.entities.Message message) {
     return new Message(message.getContentStripped(),
         message.getAttachments().stream().map(this::convertToAttachment).toList(),
         convertToAuthor(message.getMember(), message.getAuthor()));
@@ -68,9 +110,12 @@ public class DiscordListener extends ListenerAdapter {
   @Contract(pure = true)
   private @NotNull Message.Attachment convertToAttachment(
       @NotNull net.dv8tion.jda.api.entities.Message.Attachment attachment) {
-    return new Message.Attachment(attachment.getFileName(),
-        URI.create(attachment.getUrl()),
-        () -> attachment.getProxy().download().join());
+    return attachmentFactory.create(new AttachmentSource(AttachmentSource.Origin.DISCORD,
+        attachment.getId(),
+        attachment.getFileName(),
+        attachment.getProxyUrl(),
+        attachment.isImage() ? AttachmentSource.Kind.IMAGE
+            : attachment.isVideo() ? AttachmentSource.Kind.VIDEO : AttachmentSource.Kind.OTHER));
   }
 
   @Contract(pure = true)
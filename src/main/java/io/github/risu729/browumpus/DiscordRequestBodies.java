@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.risu729.browumpus.util.ByteBudget;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// builds request bodies of Discord webhook executions
+// attachments are streamed without buffering whole files in memory
+// WebhookMessageBuilder#addFile reads the whole stream into a byte array, so build the multipart
+// request here and pipe each attachment to the connection in bounded chunks
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class DiscordRequestBodies {
+
+  private static final MediaType JSON = MediaType.get("application/json");
+  private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+  @NotNull ObjectMapper objectMapper;
+  // shared by all uploads to bound the bytes in flight regardless of the number of attachments
+  @NotNull ByteBudget budget;
+  int chunkSize;
+  long maxAttachmentSize;
+
+  public DiscordRequestBodies(@NotNull ObjectMapper objectMapper,
+      @Value("${browumpus.attachment.chunk-size}") @NotNull DataSize chunkSize,
+      @Value("${browumpus.attachment.max-size}") @NotNull DataSize maxAttachmentSize,
+      @Value("${browumpus.attachment.in-flight-budget}") @NotNull DataSize inFlightBudget) {
+    checkArgument(chunkSize.toBytes() <= inFlightBudget.toBytes());
+    this.objectMapper = objectMapper;
+    this.budget = ByteBudget.of(Math.toIntExact(inFlightBudget.toBytes()));
+    this.chunkSize = Math.toIntExact(chunkSize.toBytes());
+    this.maxAttachmentSize = maxAttachmentSize.toBytes();
+  }
+
+  // the body can only be written once if the message has attachments
+  public @NotNull RequestBody create(@NotNull Message message) throws JsonProcessingException {
+    var attachments = message.attachments();
+    if (attachments.isEmpty()) {
+      return RequestBody.create(createPayload(message), JSON);
+    }
+    var body = new MultipartBody.Builder().setType(MultipartBody.FORM)
+        .addFormDataPart("payload_json", createPayload(message));
+    for (int i = 0; i < attachments.size(); i++) {
+      var attachment = attachments.get(i);
+      body.addFormDataPart("files[%d]".formatted(i),
+          attachment.filename(),
+          new StreamingBody(attachment));
+    }
+    return body.build();
+  }
+
+  @Contract(pure = true)
+  private @NotNull String createPayload(@NotNull Message message) throws JsonProcessingException {
+    var payload = new HashMap<String, Object>();
+    payload.put("username", message.author().name());
+    message.author().uri().map(URI::toString).ifPresent(uri -> payload.put("avatar_url", uri));
+    message.content().ifPresent(content -> payload.put("content", content));
+    payload.put("allowed_mentions", Map.of("parse", List.of()));
+    payload.put("attachments", IntStream.range(0, message.attachments().size())
+        .mapToObj(i -> Map.of("id", i, "filename", message.attachments().get(i).filename()))
+        .toList());
+    return objectMapper.writeValueAsString(payload);
+  }
+
+  @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+  private final class StreamingBody extends RequestBody {
+
+    @NotNull Message.Attachment attachment;
+    @Nullable MediaType contentType;
+
+    StreamingBody(@NotNull Message.Attachment attachment) {
+      this.attachment = attachment;
+      this.contentType = Optional.ofNullable(URLConnection.guessContentTypeFromName(
+          attachment.filename())).map(MediaType::parse).orElse(OCTET_STREAM);
+    }
+
+    @Override
+    public @Nullable MediaType contentType() {
+      return contentType;
+    }
+
+    // the stream can only be read once
+    @Override
+    public boolean isOneShot() {
+      return true;
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+      var buffer = new byte[chunkSize];
+      long total = 0;
+      try (var stream = attachment.stream().orElseThrow()) {
+        while (true) {
+          budget.acquire(chunkSize);
+          try {
+            var read = stream.read(buffer);
+            if (read == -1) {
+              break;
+            }
+            total += read;
+            if (total > maxAttachmentSize) {
+              throw new IOException("%s exceeds the maximum attachment size of %d bytes".formatted(
+                  attachment.filename(),
+                  maxAttachmentSize));
+            }
+            sink.write(buffer, 0, read);
+            // flush to release the buffered segments before reading the next chunk
+            sink.flush();
+          } finally {
+            budget.release(chunkSize);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the byte budget");
+      }
+      log.debug("Uploaded {} ({} bytes)", attachment.filename(), total);
+    }
+  }
+}
@@ -8,21 +8,15 @@
 
 package io.github.risu729.browumpus;
 
-import club.minnced.discord.webhook.external.JDAWebhookClient;
-import club.minnced.discord.webhook.send.AllowedMentions;
-import club.minnced.discord.webhook.send.WebhookMessage;
-import club.minnced.discord.webhook.send.WebhookMessageBuilder;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import lombok.extern.slf4j.Slf4j;
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @Service
@@ -30,25 +24,21 @@ import java.net.URI;
 @AllArgsConstructor
 public class DiscordSender implements MessageSender {
 
-  @NotNull JDAWebhookClient webhookClient;
+  @NotNull DiscordWebhookPool webhookPool;
+  @NotNull DiscordWebhookDispatcher dispatcher;
 
-  public void send(@NotNull Message message) {
-    webhookClient.send(convertToWebhookMessage(message));
-  }
-
-  @Contract(pure = true)
-  private @NotNull WebhookMessage convertToWebhookMessage(@NotNull Message message) {
-    var builder = new WebhookMessageBuilder().setUsername(message.author().name())
-        .setAvatarUrl(message.author().uri().map(URI::toString).orElse(null))
-        .setAllowedMentions(AllowedMentions.none())
-        .setContent(message.content().orElse(null));
-    for (var attachment : message.attachments()) {
-      try (var stream = attachment.stream().orElseThrow()) {
-        builder.addFile(attachment.filename(), stream);
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
-      }
+  // returns after queued, the dispatcher handles rate limits
+  // blocks only on the first message to the channel to keep the order
+  // finishes the trace of the message when sent
+  @Override
+  public @NotNull CompletableFuture<Void> send(@NotNull String to, @NotNull Message message) {
+    var trace = message.trace();
+    String url;
+    try (var span = trace.start("webhook.lookup")) {
+      url = webhookPool.urlOf(to).join();
+    } catch (CompletionException e) {
+      return CompletableFuture.failedFuture(e.getCause());
     }
-    return builder.build();
+    return dispatcher.dispatch(url, message).whenComplete((unused, e) -> trace.finish(e));
   }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// executes Discord webhooks in order, paced by the rate limit headers of the previous responses
+// the remaining requests are spread over the reset window instead of being sent at once and
+// hitting 429, and consecutive text messages from the same author are merged into one request
+@Slf4j
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class DiscordWebhookDispatcher {
+
+  private static final int MAX_CONTENT_LENGTH = 2000;
+
+  @NotNull OkHttpClient httpClient = new OkHttpClient();
+  @NotNull DiscordRequestBodies requestBodies;
+  // only waits for rate limits, and the requests are sent on the workers
+  @NotNull ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("discord-webhook-scheduler-%d").build());
+  @NotNull ExecutorService workers;
+  @NotNull Map<String, Lane> lanes = new ConcurrentHashMap<>();
+  @NotNull Semaphore capacity;
+  // System#nanoTime until which all webhooks are blocked by the global rate limit
+  @NotNull AtomicLong globalResumeAt = new AtomicLong(System.nanoTime());
+  @NotNull Timer queueDelay;
+  @NotNull Counter rateLimited;
+  @NotNull Counter merged;
+
+  public DiscordWebhookDispatcher(@NotNull DiscordRequestBodies requestBodies,
+      @NotNull MeterRegistry meterRegistry, @NotNull TaskExecutors taskExecutors,
+      @Value("${browumpus.discord.dispatcher.threads}") int threads,
+      @Value("${browumpus.discord.dispatcher.queue-capacity}") int queueCapacity) {
+    checkArgument(queueCapacity > 0);
+    this.requestBodies = requestBodies;
+    this.workers = taskExecutors.create("discord-webhook", threads);
+    this.capacity = new Semaphore(queueCapacity);
+    Gauge.builder("discord.webhook.queue.depth", capacity,
+            semaphore -> queueCapacity - semaphore.availablePermits())
+        .description("Number of messages waiting or being sent to Discord")
+        .register(meterRegistry);
+    this.queueDelay = Timer.builder("discord.webhook.queue.delay")
+        .description("Time from dispatching a message to sending it to Discord")
+        .register(meterRegistry);
+    this.rateLimited = Counter.builder("discord.webhook.rate.limited")
+        .description("Number of webhook executions rejected with 429")
+        .register(meterRegistry);
+    this.merged = Counter.builder("discord.webhook.merged")
+        .description("Number of messages merged into the previous webhook execution")
+        .register(meterRegistry);
+  }
+
+  // blocks while the queue is full
+  public @NotNull CompletableFuture<Void> dispatch(@NotNull String webhookURL,
+      @NotNull Message message) {
+    try {
+      capacity.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return CompletableFuture.failedFuture(e);
+    }
+    var pending = new Pending(message, System.nanoTime(), new CompletableFuture<>());
+    pending.future().whenComplete((unused, e) -> capacity.release());
+    lanes.computeIfAbsent(webhookURL, Lane::new).enqueue(pending);
+    return pending.future();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    scheduler.shutdown();
+    workers.shutdown();
+  }
+
+  @Contract(pure = true)
+  private static boolean isMergeable(@NotNull Message first, @NotNull Message second) {
+    return first.attachments().isEmpty() && second.attachments().isEmpty()
+        && first.author().name().equals(second.author().name())
+        && Objects.equals(first.author().uri(), second.author().uri());
+  }
+
+  @Contract(pure = true)
+  private static long parseSeconds(@NotNull String seconds) {
+    return (long) (Double.parseDouble(seconds) * TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private record Pending(@NotNull Message message, long enqueuedAt,
+                         @NotNull CompletableFuture<Void> future) {}
+
+  @FieldDefaults(level = AccessLevel.PRIVATE)
+  @RequiredArgsConstructor
+  private final class Lane {
+
+    final @NotNull String url;
+    final @NotNull Deque<Pending> queue = new ArrayDeque<>();
+    // whether a drain is running or scheduled
+    boolean draining;
+    // System#nanoTime until which this webhook should not be executed
+    long resumeAt = System.nanoTime();
+
+    synchronized void enqueue(@NotNull Pending pending) {
+      queue.add(pending);
+      if (!draining) {
+        draining = true;
+        workers.execute(this::drain);
+      }
+    }
+
+    void drain() {
+      while (true) {
+        List<Pending> batch;
+        synchronized (this) {
+          if (queue.isEmpty()) {
+            draining = false;
+            return;
+          }
+          var wait = Math.max(resumeAt, globalResumeAt.get()) - System.nanoTime();
+          if (wait > 0) {
+            scheduler.schedule(() -> workers.execute(this::drain), wait, TimeUnit.NANOSECONDS);
+            return;
+          }
+          batch = pollBatch();
+        }
+        execute(batch);
+      }
+    }
+
+    // polls the head and the following messages which can be merged into it
+    private @NotNull List<Pending> pollBatch() {
+      var batch = new ArrayList<Pending>();
+      var head = queue.remove();
+      batch.add(head);
+      var length = head.message().content().map(String::length).orElse(0);
+      while (!queue.isEmpty() && isMergeable(head.message(), queue.peek().message())) {
+        // joined with a line break
+        var next = queue.peek().message().content().map(String::length).orElse(0);
+        if (length + 1 + next > MAX_CONTENT_LENGTH) {
+          break;
+        }
+        length += 1 + next;
+        batch.add(queue.remove());
+      }
+      return batch;
+    }
+
+    private void execute(@NotNull List<Pending> batch) {
+      var message = batch.size() == 1 ? batch.get(0).message()
+          : new Message(batch.stream()
+              .map(pending -> pending.message().content().orElse(""))
+              .collect(Collectors.joining("\n")), batch.get(0).message().author());
+      var sentAt = System.nanoTime();
+      batch.forEach(pending -> pending.message()
+          .trace()
+          .record("queue", pending.enqueuedAt(), sentAt));
+      // attachments are downloaded while the request body is written, which is only done for
+      // unmerged messages
+      try (var scope = batch.get(0).message().trace().activate();
+           var response = httpClient.newCall(new Request.Builder().url(url)
+               .post(requestBodies.create(message))
+               .build()).execute()) {
+        var receivedAt = System.nanoTime();
+        batch.forEach(pending -> pending.message()
+            .trace()
+            .record("request", sentAt, receivedAt));
+        updateRateLimit(response);
+        if (response.code() == 429) {
+          rateLimited.increment();
+          log.warn("Rate limited by Discord, retrying {} messages", batch.size());
+          requeue(batch);
+          return;
+        }
+        if (!response.isSuccessful()) {
+          var responseBody = response.body();
+          throw new WebhookRejectedException(response.code(),
+              responseBody == null ? "" : responseBody.string());
+        }
+        merged.increment(batch.size() - 1);
+        for (var pending : batch) {
+          queueDelay.record(sentAt - pending.enqueuedAt(), TimeUnit.NANOSECONDS);
+          pending.future().complete(null);
+        }
+      } catch (IOException | RuntimeException e) {
+        log.error("Failed to send {} messages to Discord", batch.size(), e);
+        batch.forEach(pending -> pending.future().completeExceptionally(e));
+      }
+    }
+
+    private synchronized void requeue(@NotNull List<Pending> batch) {
+      for (var i = batch.size() - 1; i >= 0; i--) {
+        queue.addFirst(batch.get(i));
+      }
+    }
+
+    private synchronized void updateRateLimit(@NotNull Response response) {
+      var now = System.nanoTime();
+      if (response.code() == 429) {
+        var retryAfter = Optional.ofNullable(response.header("Retry-After"))
+            .map(DiscordWebhookDispatcher::parseSeconds)
+            .orElse(TimeUnit.SECONDS.toNanos(1));
+        if (Boolean.parseBoolean(response.header("X-RateLimit-Global"))) {
+          globalResumeAt.accumulateAndGet(now + retryAfter, Math::max);
+        } else {
+          resumeAt = now + retryAfter;
+        }
+        return;
+      }
+      var remaining = response.header("X-RateLimit-Remaining");
+      var resetAfter = response.header("X-RateLimit-Reset-After");
+      if (remaining == null || resetAfter == null) {
+        return;
+      }
+      // spread the remaining requests evenly over the rest of the window
+      resumeAt = now + parseSeconds(resetAfter) / (Integer.parseInt(remaining) + 1);
+    }
+  }
+
+  // a non-2xx response other than 429, which is retried here
+  public static final class WebhookRejectedException extends IOException {
+
+    private final int code;
+
+    WebhookRejectedException(int code, @NotNull String body) {
+      super("Failed to execute Discord webhook: %d %s".formatted(code, body));
+      this.code = code;
+    }
+
+    @Contract(pure = true)
+    public int code() {
+      return code;
+    }
+  }
+}
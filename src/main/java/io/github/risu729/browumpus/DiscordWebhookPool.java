@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.collect.MoreCollectors;
+import jakarta.annotation.PostConstruct;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Icon;
+import net.dv8tion.jda.api.entities.Webhook;
+import net.dv8tion.jda.api.entities.channel.attribute.IWebhookContainer;
+import net.dv8tion.jda.api.requests.RestConfig;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// looks up or creates the webhook of each Discord channel, and keeps its URL
+// the webhooks of the bridged channels are looked up as a startup task once JDA is ready, and
+// those of channels bridged later on first use
+// the dispatcher keeps one lane per URL, so bridges share the HTTP client and threads
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class DiscordWebhookPool {
+
+  private static final String WEBHOOK_NAME = "Browumpus";
+  private static final String DISCOVERY_TASK = "discordWebhooks";
+
+  @NotNull JDA jda;
+  @NotNull String apiBaseUrl;
+  @NotNull BridgeRoutes routes;
+  @NotNull RouteOwnership ownership;
+  @NotNull StartupTasks startupTasks;
+  @NotNull Map<String, CompletableFuture<String>> urls = new ConcurrentHashMap<>();
+
+  // lazy because JDA is built with the listener which depends on this through the outbox
+  public DiscordWebhookPool(@Lazy @NotNull JDA jda, @NotNull BrowumpusProperties properties,
+      @NotNull BridgeRoutes routes, @NotNull RouteOwnership ownership,
+      @NotNull StartupTasks startupTasks) {
+    this.jda = jda;
+    this.apiBaseUrl = properties.discord().apiBaseUrl();
+    this.routes = routes;
+    this.ownership = ownership;
+    this.startupTasks = startupTasks;
+  }
+
+  // only the routes owned by this node are relayed by it
+  @PostConstruct
+  public void discover() {
+    startupTasks.run(DISCOVERY_TASK, () -> {
+      ownership.claimed().get();
+      CompletableFuture.allOf(routes.discordChannelIDs()
+          .stream()
+          .filter(ownership::isLocal)
+          .map(this::urlOf)
+          .toArray(CompletableFuture[]::new)).get();
+    });
+  }
+
+  public @NotNull CompletableFuture<String> urlOf(@NotNull String channelID) {
+    var future = urls.computeIfAbsent(channelID, this::retrieveURL);
+    // retry on the next call if failed
+    future.exceptionally(e -> {
+      urls.remove(channelID, future);
+      return null;
+    });
+    return future;
+  }
+
+  // channels are not cached until JDA is ready
+  private @NotNull CompletableFuture<String> retrieveURL(@NotNull String channelID) {
+    return startupTasks.completion(DiscordBotAutoConfiguration.GATEWAY_TASK)
+        .thenCompose(unused -> retrieveURLWhenReady(channelID));
+  }
+
+  private @NotNull CompletableFuture<String> retrieveURLWhenReady(@NotNull String channelID) {
+    var channel = jda.getChannelById(IWebhookContainer.class, channelID);
+    if (channel == null) {
+      return CompletableFuture.failedFuture(
+          new IllegalArgumentException("Unknown Discord channel: " + channelID));
+    }
+    return channel.retrieveWebhooks()
+        .submit()
+        .thenCompose(webhooks -> webhooks.stream()
+            .filter(webhook -> webhook.getName().equals(WEBHOOK_NAME))
+            .collect(MoreCollectors.toOptional())
+            .map(CompletableFuture::completedFuture)
+            .orElseGet(() -> createWebhook(channel)))
+        .thenApply(this::urlOf);
+  }
+
+  // Webhook#getUrl ignores the base URL of the REST config
+  @Contract(pure = true)
+  private @NotNull String urlOf(@NotNull Webhook webhook) {
+    var url = webhook.getUrl();
+    return url.startsWith(RestConfig.DEFAULT_BASE_URL)
+        ? apiBaseUrl + url.substring(RestConfig.DEFAULT_BASE_URL.length()) : url;
+  }
+
+  private static @NotNull CompletableFuture<Webhook> createWebhook(
+      @NotNull IWebhookContainer channel) {
+    log.info("Creating webhook in {}", channel);
+    try {
+      return channel.createWebhook(WEBHOOK_NAME)
+          .setAvatar(Icon.from(BrowumpusApplication.RESOURCES_DIR.resolve("browumpus.png")
+              .toFile()))
+          .submit();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
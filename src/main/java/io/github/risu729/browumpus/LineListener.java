@@ -8,9 +8,8 @@
 
 package io.github.risu729.browumpus;
 
-import com.linecorp.bot.client.LineBlobClient;
+import com.google.common.annotations.VisibleForTesting;
 import com.linecorp.bot.client.LineMessagingClient;
-import com.linecorp.bot.client.exception.NotFoundException;
 import com.linecorp.bot.model.ReplyMessage;
 import com.linecorp.bot.model.event.Event;
 import com.linecorp.bot.model.event.JoinEvent;
@@ -26,14 +25,13 @@ import com.linecorp.bot.model.event.message.VideoMessageContent;
 import com.linecorp.bot.model.event.source.GroupSource;
 import com.linecorp.bot.model.event.source.RoomSource;
 import com.linecorp.bot.model.event.source.Source;
-import com.linecorp.bot.model.event.source.UserSource;
 import com.linecorp.bot.model.message.TextMessage;
 import com.linecorp.bot.model.profile.UserProfileResponse;
-import com.linecorp.bot.model.request.SetWebhookEndpointRequest;
-import com.linecorp.bot.model.response.GetWebhookEndpointResponse;
 import com.linecorp.bot.spring.boot.annotation.EventMapping;
 import com.linecorp.bot.spring.boot.annotation.LineMessageHandler;
-import io.github.risu729.browumpus.util.Envs;
+import io.github.risu729.browumpus.util.RecentIdIndex;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AccessLevel;
 import lombok.experimental.FieldDefaults;
 import lombok.extern.slf4j.Slf4j;
@@ -41,11 +39,11 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Value;
 
-import java.net.URI;
 import java.nio.file.Path;
-import java.util.Objects;
+import java.time.Duration;
+import java.util.Locale;
 import java.util.Optional;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -56,88 +54,141 @@ import static com.google.common.base.Preconditions.checkArgument;
 public class LineListener {
 
   @NotNull LineMessagingClient messagingClient;
-  @NotNull LineBlobClient blobClient;
-  @NotNull DiscordSender discordSender;
+  @NotNull MessageOutbox outbox;
+  @NotNull MessageRelay relay;
+  @NotNull BridgeRoutes routes;
+  @NotNull RouteOwnership ownership;
+  @NotNull LineProfileResolver profileResolver;
+  @NotNull AttachmentFactory attachmentFactory;
+  @NotNull BridgeMetrics metrics;
+  @NotNull TraceRecorder traces;
+  // webhook event IDs seen recently, LINE redelivers webhooks when the response is slow
+  @NotNull RecentIdIndex seenEvents;
+  @NotNull Counter duplicateEvents;
 
   public LineListener(@NotNull LineMessagingClient messagingClient,
-      @NotNull LineBlobClient blobClient, @NotNull DiscordSender discordSender,
-      @Value("${line.bot.handler.path}") @NotNull String endpointPath) {
+      @NotNull MessageOutbox outbox, @NotNull MessageRelay relay, @NotNull BridgeRoutes routes,
+      @NotNull RouteOwnership ownership, @NotNull LineProfileResolver profileResolver,
+      @NotNull AttachmentFactory attachmentFactory, @NotNull BridgeMetrics metrics,
+      @NotNull TraceRecorder traces, @NotNull MeterRegistry meterRegistry,
+      @Value("${browumpus.line.dedup.capacity}") int dedupCapacity,
+      @Value("${browumpus.line.dedup.window}") @NotNull Duration dedupWindow) {
     this.messagingClient = messagingClient;
-    this.blobClient = blobClient;
-    this.discordSender = discordSender;
-
-    setWebhookEndpoint(endpointPath);
+    this.outbox = outbox;
+    this.relay = relay;
+    this.routes = routes;
+    this.ownership = ownership;
+    this.profileResolver = profileResolver;
+    this.attachmentFactory = attachmentFactory;
+    this.metrics = metrics;
+    this.traces = traces;
+    this.seenEvents = RecentIdIndex.of(dedupCapacity, dedupWindow);
+    this.duplicateEvents = Counter.builder("line.webhook.duplicates")
+        .description("Number of redelivered LINE webhook events skipped")
+        .register(meterRegistry);
   }
 
-  @SuppressWarnings("ReassignedVariable")
-  private void setWebhookEndpoint(@NotNull String endpointPath) {
-
-    Optional<GetWebhookEndpointResponse> getResponse;
-    try {
-      getResponse = Optional.of(messagingClient.getWebhookEndpoint().get());
-    } catch (ExecutionException e) {
-      if (e.getCause() instanceof NotFoundException) {
-        getResponse = Optional.empty();
-      } else {
-        throw new RuntimeException(e);
-      }
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
-    }
-
-    // throw exception if webhook is not active, which can't be enabled through API
-    if (!getResponse.map(GetWebhookEndpointResponse::isActive).orElse(false)) {
-      throw new IllegalStateException("Webhook of LINE bot is not active");
+  @SuppressWarnings("rawtypes")
+  @EventMapping
+  public void onMessageEvent(@NotNull MessageEvent event) {
+    // only groups and rooms can be bridged
+    var source = event.getSource();
+    var channelID = source instanceof GroupSource || source instanceof RoomSource
+        ? routes.discordChannelOf(source.getSenderId()) : Optional.<String>empty();
+    if (channelID.isEmpty()) {
+      onEvent(event);
+      return;
     }
 
-    var endpoint = URI.create("https://" + Envs.getEnv("RAILWAY_STATIC_URL") + endpointPath);
-
-    // skip if the endpoint is already set
-    if (Objects.equals(endpoint, getResponse.orElseThrow().getEndpoint())) {
+    // relayed by the node owning the route, which LineWebhookForwarder has forwarded it to
+    // a webhook is forwarded as a whole, so the events of the other owners are skipped here too
+    if (!ownership.isLocal(channelID.get())) {
+      log.debug("Skipped event of remote route: {}", event.getWebhookEventId());
       return;
     }
 
-    messagingClient.setWebhookEndpoint(SetWebhookEndpointRequest.builder()
-        .endpoint(endpoint)
-        .build());
-  }
-
-  @SuppressWarnings("rawtypes")
-  @EventMapping
-  public void onMessageEvent(@NotNull MessageEvent event) {
-    if (!(event.getSource() instanceof GroupSource groupSource && groupSource.getGroupId()
-        .equals(Envs.getEnv("LINE_GROUP_ID")))) {
-      onEvent(event);
+    // skipped before fetching the profile and the content
+    if (!seenEvents.add(event.getWebhookEventId())) {
+      duplicateEvents.increment();
+      log.info("Skipped redelivered event: {}", event.getWebhookEventId());
       return;
     }
 
-    log.info("Received message from LINE: {}", event);
+    // such as "text" for TextMessageContent
+    var type = event.getMessage()
+        .getClass()
+        .getSimpleName()
+        .replace("MessageContent", "")
+        .toLowerCase(Locale.ROOT);
+    metrics.received("line", type);
+    // redelivered webhooks have the same event ID
+    var key = "line:" + event.getWebhookEventId();
+    // the event is only formatted if debug is enabled, as it contains the text and the profile
+    log.atInfo()
+        .addKeyValue("key", key)
+        .addKeyValue("type", type)
+        .addKeyValue("lineID", source.getSenderId())
+        .addKeyValue("messageID", event.getMessage().getId())
+        .addKeyValue("length", event.getMessage() instanceof TextMessageContent text
+            ? text.getText().length() : 0)
+        .log("Received message from LINE");
+    log.debug("Received message from LINE: {}", event);
+    var trace = traces.start(key, "line", type);
+    var relaying = trace.start("relay");
 
-    discordSender.send(convertToMessage(event));
+    // return immediately to respond to the webhook before LINE times out
+    var submitted = relay.submit("line", source.getSenderId(), () -> {
+      relaying.close();
+      trace.runDelivery(() -> {
+        Message message;
+        try (var converting = trace.start("convert")) {
+          message = metrics.convert("line", type, () -> convertToMessage(event));
+        }
+        return outbox.deliver(key,
+            MessageOutbox.Destination.DISCORD,
+            channelID.get(),
+            message.withTrace(trace));
+      });
+    });
+    if (!submitted) {
+      trace.finish(new RejectedExecutionException("Relay queue is full"));
+    }
   }
 
   @EventMapping
   public void onJoinEvent(@NotNull JoinEvent event) {
-    checkArgument(event.getSource() instanceof GroupSource);
-    var groupID = ((GroupSource) event.getSource()).getGroupId();
-    log.info("Joined group: {}", groupID);
-    if (Envs.getEnv("LINE_GROUP_ID").equals(groupID)) {
+    var source = event.getSource();
+    checkArgument(source instanceof GroupSource || source instanceof RoomSource);
+    var id = source.getSenderId();
+    log.info("Joined group or room: {}", id);
+    if (routes.discordChannelOf(id).isPresent()) {
       return;
     }
     messagingClient.replyMessage(new ReplyMessage(event.getReplyToken(),
-            new TextMessage("このグループのIDは %s です。".formatted(groupID))))
+            new TextMessage("このグループのIDは %s です。".formatted(id))))
         // leave group to prevent webhooks
-        .whenComplete((res, err) -> messagingClient.leaveGroup(groupID));
+        .whenComplete((res, err) -> {
+          if (source instanceof RoomSource) {
+            messagingClient.leaveRoom(id);
+          } else {
+            messagingClient.leaveGroup(id);
+          }
+        });
   }
 
   @EventMapping
   public void onEvent(@NotNull Event event) {
-    log.info("Received event(Ignored): {}", event);
+    log.atInfo()
+        .addKeyValue("type", event.getClass().getSimpleName())
+        .addKeyValue("eventID", event.getWebhookEventId())
+        .log("Received event(Ignored)");
+    log.debug("Received event(Ignored): {}", event);
   }
 
+  @VisibleForTesting
   @Contract(pure = true)
   @SuppressWarnings("resource")
-  private @NotNull Message convertToMessage(@NotNull MessageEvent<?> event) {
+  @NotNull Message convertToMessage(@NotNull MessageEvent<?> event) {
 
     var message = event.getMessage();
     var author = convertToAuthor(event.getSource());
@@ -147,18 +198,24 @@ public class LineListener {
     } else if (message instanceof ImageMessageContent imageMessage) {
       return new Message(convertToAttachment(imageMessage.getId(),
           "jpg",
+          AttachmentSource.Kind.IMAGE,
           imageMessage.getContentProvider()), author);
     } else if (message instanceof AudioMessageContent audioMessage) {
       return new Message(convertToAttachment(audioMessage.getId(),
           "m4a",
+          AttachmentSource.Kind.OTHER,
           audioMessage.getContentProvider()), author);
     } else if (message instanceof VideoMessageContent videoMessage) {
       return new Message(convertToAttachment(videoMessage.getId(),
           "mp4",
+          AttachmentSource.Kind.VIDEO,
           videoMessage.getContentProvider()), author);
     } else if (message instanceof FileMessageContent fileMessage) {
-      return new Message(new Message.Attachment(fileMessage.getFileName(),
-          () -> blobClient.getMessageContent(fileMessage.getId()).join().getStream()), author);
+      return new Message(attachmentFactory.create(new AttachmentSource(AttachmentSource.Origin.LINE,
+          fileMessage.getId(),
+          fileMessage.getFileName(),
+          null,
+          AttachmentSource.Kind.OTHER)), author);
     } else if (message instanceof LocationMessageContent locationMessage) {
       throw new UnsupportedOperationException("LocationMessageContent is not supported");
     } else if (message instanceof StickerMessageContent stickerMessage) {
@@ -169,17 +226,21 @@ public class LineListener {
   }
 
   @Contract(pure = true)
-  @SuppressWarnings("resource")
   private @NotNull Message.Attachment convertToAttachment(@NotNull String messageID,
-      @NotNull String extension, @NotNull ContentProvider provider) {
+      @NotNull String extension, @NotNull AttachmentSource.Kind kind,
+      @NotNull ContentProvider provider) {
     switch (provider.getType()) {
       case "line" -> {
-        return new Message.Attachment(messageID + "." + extension,
-            () -> blobClient.getMessageContent(messageID).join().getStream());
+        return attachmentFactory.create(new AttachmentSource(AttachmentSource.Origin.LINE,
+            messageID,
+            messageID + "." + extension,
+            null,
+            kind));
       }
       case "external" -> {
         var url = provider.getOriginalContentUrl();
-        return new Message.Attachment(Path.of(url).getFileName().toString(),
+        // Path#of(URI) only accepts file URIs
+        return new Message.Attachment(Path.of(url.getPath()).getFileName().toString(),
             url,
             provider.getPreviewImageUrl());
       }
@@ -191,18 +252,9 @@ public class LineListener {
   @Contract(pure = true)
   private @NotNull Message.Author convertToAuthor(@NotNull Source source) {
     UserProfileResponse profile;
-    if (source instanceof GroupSource groupSource) {
-      profile = messagingClient.getGroupMemberProfile(groupSource.getGroupId(),
-          groupSource.getUserId()).join();
-    } else if (source instanceof RoomSource roomSource) {
-      profile = messagingClient.getRoomMemberProfile(roomSource.getRoomId(), roomSource.getUserId())
-          .join();
-    } else if (source instanceof UserSource userSource) {
-      profile = messagingClient.getProfile(userSource.getUserId()).join();
-    } else {
-      throw new IllegalArgumentException("Unknown source type: " + source.getClass());
+    try (var span = MessageTrace.span("profile")) {
+      profile = profileResolver.resolve(source).join();
     }
-
     return new Message.Author(profile.getDisplayName(), profile.getPictureUrl());
   }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.model.event.source.GroupSource;
+import com.linecorp.bot.model.event.source.RoomSource;
+import com.linecorp.bot.model.event.source.Source;
+import com.linecorp.bot.model.event.source.UserSource;
+import com.linecorp.bot.model.profile.UserProfileResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+// caches LINE profiles to avoid a profile API call for every message
+// concurrent lookups of the same user share the same in-flight future
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class LineProfileResolver {
+
+  @NotNull LineMessagingClient messagingClient;
+  @NotNull LoadingCache<ProfileKey, CompletableFuture<UserProfileResponse>> cache;
+  @NotNull Timer lookupTime;
+
+  public LineProfileResolver(@NotNull LineMessagingClient messagingClient,
+      @NotNull MeterRegistry meterRegistry,
+      @Value("${browumpus.line.profile-cache.maximum-size}") long maximumSize,
+      @Value("${browumpus.line.profile-cache.expire-after-write}") @NotNull Duration expireAfterWrite,
+      @Value("${browumpus.line.profile-cache.refresh-after-write}")
+      @NotNull Duration refreshAfterWrite) {
+    this.messagingClient = messagingClient;
+    this.lookupTime = Timer.builder("line.profile.lookup")
+        .description("Time to fetch a profile from LINE on a cache miss or refresh")
+        .register(meterRegistry);
+
+    var builder = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(expireAfterWrite)
+        .recordStats();
+    // zero disables refreshing
+    if (!refreshAfterWrite.isZero()) {
+      builder.refreshAfterWrite(refreshAfterWrite);
+    }
+    this.cache = builder.build(new CacheLoader<>() {
+      @Override
+      public @NotNull CompletableFuture<UserProfileResponse> load(@NotNull ProfileKey key) {
+        return fetch(key);
+      }
+
+      // keep serving the old profile until the new one is fetched
+      @Override
+      public @NotNull ListenableFuture<CompletableFuture<UserProfileResponse>> reload(
+          @NotNull ProfileKey key, @NotNull CompletableFuture<UserProfileResponse> oldValue) {
+        var future = SettableFuture.<CompletableFuture<UserProfileResponse>>create();
+        fetch(key).whenComplete((profile, e) -> {
+          if (e == null) {
+            future.set(CompletableFuture.completedFuture(profile));
+          } else {
+            future.setException(e);
+          }
+        });
+        return future;
+      }
+    });
+    GuavaCacheMetrics.monitor(meterRegistry, cache, "line.profile");
+  }
+
+  public @NotNull CompletableFuture<UserProfileResponse> resolve(@NotNull Source source) {
+    var key = ProfileKey.of(source);
+    var future = cache.getUnchecked(key);
+    // do not cache failures
+    future.whenComplete((profile, e) -> {
+      if (e != null) {
+        cache.asMap().remove(key, future);
+      }
+    });
+    return future;
+  }
+
+  private @NotNull CompletableFuture<UserProfileResponse> fetch(@NotNull ProfileKey key) {
+    var sample = Timer.start();
+    var future = switch (key.type()) {
+      case GROUP -> messagingClient.getGroupMemberProfile(key.containerID(), key.userID());
+      case ROOM -> messagingClient.getRoomMemberProfile(key.containerID(), key.userID());
+      case USER -> messagingClient.getProfile(key.userID());
+    };
+    return future.whenComplete((profile, e) -> sample.stop(lookupTime));
+  }
+
+  private enum SourceType {
+    GROUP, ROOM, USER
+  }
+
+  private record ProfileKey(@NotNull SourceType type, @Nullable String containerID,
+                            @NotNull String userID) {
+
+    @Contract(pure = true)
+    static @NotNull ProfileKey of(@NotNull Source source) {
+      if (source instanceof GroupSource groupSource) {
+        return new ProfileKey(SourceType.GROUP, groupSource.getGroupId(),
+            groupSource.getUserId());
+      } else if (source instanceof RoomSource roomSource) {
+        return new ProfileKey(SourceType.ROOM, roomSource.getRoomId(), roomSource.getUserId());
+      } else if (source instanceof UserSource userSource) {
+        return new ProfileKey(SourceType.USER, null, userSource.getUserId());
+      } else {
+        throw new IllegalArgumentException("Unknown source type: " + source.getClass());
+      }
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.model.PushMessage;
+import com.linecorp.bot.model.message.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// packs LINE messages arriving within the window into push requests of up to 5 messages
+// the push quota is counted per request, so each packed message saves a request
+@Slf4j
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class LinePushBatcher {
+
+  // the maximum number of messages in a push request
+  private static final int MAX_MESSAGES = 5;
+
+  @NotNull LineMessagingClient messagingClient;
+  @NotNull ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("line-push-%d").build());
+  @NotNull Map<String, Batch> batches = new ConcurrentHashMap<>();
+  @NotNull Duration window;
+  @NotNull DistributionSummary batchSize;
+  @NotNull Counter savedPushes;
+
+  public LinePushBatcher(@NotNull LineMessagingClient messagingClient,
+      @NotNull MeterRegistry meterRegistry,
+      @Value("${browumpus.line.push.coalesce-window}") @NotNull Duration window) {
+    this.messagingClient = messagingClient;
+    this.window = window;
+    this.batchSize = DistributionSummary.builder("line.push.batch.size")
+        .description("Number of messages in a LINE push request")
+        .register(meterRegistry);
+    this.savedPushes = Counter.builder("line.push.saved")
+        .description("Number of LINE push requests saved by coalescing")
+        .register(meterRegistry);
+    Gauge.builder("line.push.pending", batches,
+            batches -> batches.values().stream().mapToInt(Batch::size).sum())
+        .description("Number of LINE messages waiting to be coalesced")
+        .register(meterRegistry);
+  }
+
+  // the messages of a call are sent in the same request unless there are more than fit in one,
+  // so that a failed request never fails a call whose other messages are already pushed, which
+  // would be pushed again on retry, and the order is kept
+  // completes when all the messages are pushed
+  public @NotNull CompletableFuture<Void> push(@NotNull String to,
+      @NotNull List<Message> messages) {
+    if (messages.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    var future = new CompletableFuture<Void>();
+    batches.computeIfAbsent(to, Batch::new).add(messages, future);
+    return future;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    batches.values().forEach(Batch::flush);
+    scheduler.shutdown();
+  }
+
+  @FieldDefaults(level = AccessLevel.PRIVATE)
+  @RequiredArgsConstructor
+  private final class Batch {
+
+    final @NotNull String to;
+    final @NotNull List<Call> pending = new ArrayList<>();
+    @Nullable ScheduledFuture<?> scheduledFlush;
+    // chained to send requests in order
+    @NotNull CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+
+    synchronized void add(@NotNull List<Message> messages,
+        @NotNull CompletableFuture<Void> future) {
+      pending.add(new Call(List.copyOf(messages), future));
+      if (window.isZero()) {
+        flush();
+        return;
+      }
+      // send full requests at once, and wait for more messages to fill the last one
+      var requests = pack(pending);
+      var last = requests.get(requests.size() - 1);
+      send(sizeOf(last) >= MAX_MESSAGES ? requests : requests.subList(0, requests.size() - 1));
+      if (pending.isEmpty()) {
+        cancelScheduledFlush();
+      } else if (scheduledFlush == null) {
+        scheduledFlush = scheduler.schedule(this::flush, window.toNanos(), TimeUnit.NANOSECONDS);
+      }
+    }
+
+    synchronized int size() {
+      return pending.stream().mapToInt(call -> call.messages().size()).sum();
+    }
+
+    synchronized void flush() {
+      cancelScheduledFlush();
+      send(pack(pending));
+    }
+
+    private void cancelScheduledFlush() {
+      if (scheduledFlush != null) {
+        scheduledFlush.cancel(false);
+        scheduledFlush = null;
+      }
+    }
+
+    // the requests are the first of the packed pending calls
+    private void send(@NotNull List<List<Call>> requests) {
+      if (requests.isEmpty()) {
+        return;
+      }
+      var sentCalls = requests.stream().mapToInt(List::size).sum();
+      pending.subList(0, sentCalls).clear();
+
+      // a call larger than a request is split into as many as needed
+      var chunks = requests.stream()
+          .flatMap(request -> Lists.partition(partsOf(request), MAX_MESSAGES).stream())
+          .toList();
+      savedPushes.increment(Math.max(0, sentCalls - chunks.size()));
+
+      for (var chunk : chunks) {
+        batchSize.record(chunk.size());
+        var messages = chunk.stream().map(Part::message).toList();
+        tail = tail.thenCompose(unused -> messagingClient.pushMessage(
+                new PushMessage(to, messages)))
+            .handle((response, e) -> {
+              if (e == null) {
+                // a call spanning multiple requests completes with its last message
+                chunk.stream().filter(Part::last).forEach(part -> part.future().complete(null));
+              } else {
+                log.error("Failed to push {} messages to {}", chunk.size(), to, e);
+                chunk.forEach(part -> part.future().completeExceptionally(e));
+              }
+              return null;
+            });
+      }
+    }
+  }
+
+  // groups the calls in order into requests, starting a new one for a call which does not fit in
+  // the rest of the current one
+  private static @NotNull List<List<Call>> pack(@NotNull List<Call> calls) {
+    var requests = new ArrayList<List<Call>>();
+    var current = new ArrayList<Call>();
+    for (var call : calls) {
+      if (!current.isEmpty() && sizeOf(current) + call.messages().size() > MAX_MESSAGES) {
+        requests.add(current);
+        current = new ArrayList<>();
+      }
+      current.add(call);
+    }
+    if (!current.isEmpty()) {
+      requests.add(current);
+    }
+    return requests;
+  }
+
+  private static @NotNull List<Part> partsOf(@NotNull List<Call> request) {
+    var parts = new ArrayList<Part>();
+    for (var call : request) {
+      for (var i = 0; i < call.messages().size(); i++) {
+        parts.add(new Part(call.messages().get(i), call.future(),
+            i == call.messages().size() - 1));
+      }
+    }
+    return parts;
+  }
+
+  private static int sizeOf(@NotNull List<Call> request) {
+    return request.stream().mapToInt(call -> call.messages().size()).sum();
+  }
+
+  private record Call(@NotNull List<Message> messages, @NotNull CompletableFuture<Void> future) {}
+
+  private record Part(@NotNull Message message, @NotNull CompletableFuture<Void> future,
+                      boolean last) {}
+}
@@ -8,11 +8,12 @@
 
 package io.github.risu729.browumpus;
 
-import com.linecorp.bot.client.LineMessagingClient;
-import com.linecorp.bot.model.PushMessage;
+import com.google.common.annotations.VisibleForTesting;
+import com.linecorp.bot.model.message.AudioMessage;
 import com.linecorp.bot.model.message.ImageMessage;
 import com.linecorp.bot.model.message.TextMessage;
-import io.github.risu729.browumpus.util.Envs;
+import com.linecorp.bot.model.message.VideoMessage;
+import io.github.risu729.browumpus.util.Mp4Util;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.experimental.FieldDefaults;
@@ -21,7 +22,10 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 
 @Slf4j
@@ -30,16 +34,24 @@ import java.util.stream.Stream;
 @AllArgsConstructor
 public class LineSender implements MessageSender {
 
-  @NotNull LineMessagingClient messagingClient;
+  @NotNull LinePushBatcher pushBatcher;
 
+  // finishes the trace of the message when pushed
   @Override
-  public void send(@NotNull Message message) {
-    messagingClient.pushMessage(new PushMessage(Envs.getEnv("LINE_GROUP_ID"),
-        convertToLineMessages(message)));
+  public @NotNull CompletableFuture<Void> send(@NotNull String to, @NotNull Message message) {
+    var trace = message.trace();
+    var messages = convertToLineMessages(message);
+    // including the coalesce window
+    var pushing = trace.start("push");
+    return pushBatcher.push(to, messages).whenComplete((unused, e) -> {
+      pushing.close();
+      trace.finish(e);
+    });
   }
 
+  @VisibleForTesting
   @Contract(pure = true)
-  private @NotNull List<com.linecorp.bot.model.message.@NotNull Message> convertToLineMessages(
+  @NotNull List<com.linecorp.bot.model.message.@NotNull Message> convertToLineMessages(
       @NotNull Message message) {
     var sender = com.linecorp.bot.model.message.sender.Sender.builder()
         .name(message.author().name())
@@ -54,10 +66,29 @@ public class LineSender implements MessageSender {
               .previewImageUrl(attachment.previewURI().or(attachment::uri).orElseThrow())
               .sender(sender)
               .build();
-          case "mp4" -> throw new UnsupportedOperationException("Video is not supported yet");
-          case "m4a" -> throw new UnsupportedOperationException("Audio is not supported yet");
+          case "mp4" -> VideoMessage.builder()
+              .originalContentUrl(attachment.uri().orElseThrow())
+              .previewImageUrl(attachment.previewURI().orElseThrow())
+              .sender(sender)
+              .build();
+          case "m4a" -> AudioMessage.builder()
+              .originalContentUrl(attachment.uri().orElseThrow())
+              .duration(readDurationMillis(attachment))
+              .sender(sender)
+              .build();
           default -> throw new UnsupportedOperationException(
               "Unsupported extension: " + attachment.extension());
         })).toList();
   }
+
+  // LINE requires the duration of audio
+  private static long readDurationMillis(@NotNull Message.Attachment attachment) {
+    try (var stream = attachment.stream().orElseThrow()) {
+      return Mp4Util.readDurationMillis(stream)
+          .orElseThrow(() -> new UnsupportedOperationException(
+              "Duration of " + attachment.filename() + " is unknown"));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 }
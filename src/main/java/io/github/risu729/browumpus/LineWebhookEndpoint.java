@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.client.exception.NotFoundException;
+import com.linecorp.bot.model.request.SetWebhookEndpointRequest;
+import com.linecorp.bot.model.response.GetWebhookEndpointResponse;
+import jakarta.annotation.PostConstruct;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+// points the webhook of the LINE bot to this application as a startup task
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class LineWebhookEndpoint {
+
+  private static final String TASK = "lineWebhook";
+
+  @NotNull LineMessagingClient messagingClient;
+  @NotNull StartupTasks startupTasks;
+  @NotNull URI endpoint;
+
+  public LineWebhookEndpoint(@NotNull LineMessagingClient messagingClient,
+      @NotNull StartupTasks startupTasks, @NotNull BrowumpusProperties properties,
+      @Value("${line.bot.handler.path}") @NotNull String endpointPath) {
+    this.messagingClient = messagingClient;
+    this.startupTasks = startupTasks;
+    this.endpoint = URI.create("https://" + properties.host() + endpointPath);
+  }
+
+  @PostConstruct
+  public void register() {
+    startupTasks.run(TASK, this::setWebhookEndpoint);
+  }
+
+  @SuppressWarnings("ReassignedVariable")
+  private void setWebhookEndpoint() throws ExecutionException, InterruptedException {
+
+    Optional<GetWebhookEndpointResponse> getResponse;
+    try {
+      getResponse = Optional.of(messagingClient.getWebhookEndpoint().get());
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof NotFoundException) {
+        getResponse = Optional.empty();
+      } else {
+        throw e;
+      }
+    }
+
+    // throw exception if webhook is not active, which can't be enabled through API
+    if (!getResponse.map(GetWebhookEndpointResponse::isActive).orElse(false)) {
+      throw new IllegalStateException("Webhook of LINE bot is not active");
+    }
+
+    // skip if the endpoint is already set
+    if (Objects.equals(endpoint, getResponse.orElseThrow().getEndpoint())) {
+      return;
+    }
+
+    messagingClient.setWebhookEndpoint(SetWebhookEndpointRequest.builder()
+        .endpoint(endpoint)
+        .build()).get();
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+
+// lets the LINE webhooks reach any node of a cluster behind a load balancer
+// the events of the routes owned by other nodes are forwarded to them before being handled here,
+// and LineListener skips them, so that each route is relayed by its owner in the order received
+// a webhook is forwarded as is, since the owner verifies the signature of the whole body again,
+// and it fails with 503 for LINE to redeliver it if a route has no owner or the owner fails
+// each owner is sent the routes it was forwarded for, and rejects the webhook with 503 if it does
+// not own one of them, such as when the lease has moved since it was looked up, so that the
+// forwarding node fails too, while the events of the other routes are skipped by LineListener
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class LineWebhookForwarder extends OncePerRequestFilter {
+
+  private static final String SIGNATURE_HEADER = "X-Line-Signature";
+  // set on the forwarded webhooks, which are never forwarded again, to the HMAC of the routes and
+  // the signature of LINE, so that the routes cannot be replaced
+  private static final String FORWARDED_HEADER = "X-Browumpus-Forwarded";
+  // the Discord channel IDs of the routes the webhook is forwarded for
+  private static final String ROUTES_HEADER = "X-Browumpus-Routes";
+  private static final Joiner ROUTES_JOINER = Joiner.on(',');
+  private static final Splitter ROUTES_SPLITTER = Splitter.on(',').omitEmptyStrings();
+  private static final MediaType JSON = MediaType.get("application/json");
+
+  @NotNull OkHttpClient httpClient = new OkHttpClient();
+  @NotNull ClusterLeases leases;
+  @NotNull RouteOwnership ownership;
+  @NotNull BridgeRoutes routes;
+  // the same as the signature of LINE
+  @NotNull HashFunction hmac;
+  @NotNull ObjectMapper objectMapper;
+  @NotNull MeterRegistry meterRegistry;
+  @NotNull String handlerPath;
+
+  public LineWebhookForwarder(@NotNull ClusterLeases leases, @NotNull RouteOwnership ownership,
+      @NotNull BridgeRoutes routes, @NotNull ObjectMapper objectMapper,
+      @NotNull MeterRegistry meterRegistry,
+      @Value("${line.bot.channel-secret}") @NotNull String channelSecret,
+      @Value("${line.bot.handler.path}") @NotNull String handlerPath) {
+    this.leases = leases;
+    this.ownership = ownership;
+    this.routes = routes;
+    this.hmac = Hashing.hmacSha256(channelSecret.getBytes(StandardCharsets.UTF_8));
+    this.objectMapper = objectMapper;
+    this.meterRegistry = meterRegistry;
+    this.handlerPath = handlerPath;
+  }
+
+  @Override
+  protected boolean shouldNotFilter(@NotNull HttpServletRequest request) {
+    return !leases.isEnabled() || !HttpMethod.POST.matches(request.getMethod())
+        || !handlerPath.equals(request.getRequestURI());
+  }
+
+  @Override
+  protected void doFilterInternal(@NotNull HttpServletRequest request,
+      @NotNull HttpServletResponse response, @NotNull FilterChain filterChain)
+      throws ServletException, IOException {
+    var body = request.getInputStream().readAllBytes();
+    var signature = request.getHeader(SIGNATURE_HEADER);
+    // invalid webhooks are left to be rejected by the handler
+    if (signature == null || !verify(body, signature)) {
+      filterChain.doFilter(new CachedBodyRequest(request, body), response);
+      return;
+    }
+    var forwarded = request.getHeader(FORWARDED_HEADER);
+    if (forwarded != null) {
+      // never forwarded again
+      var forwardedRoutes = Strings.nullToEmpty(request.getHeader(ROUTES_HEADER));
+      if (!verify(forwardedRoutes + "\n" + signature, forwarded)) {
+        log.warn("Invalid routes {} of forwarded webhook, rejected", forwardedRoutes);
+        count("invalid");
+        response.sendError(HttpServletResponse.SC_FORBIDDEN);
+        return;
+      }
+      var notOwned = ROUTES_SPLITTER.splitToStream(forwardedRoutes)
+          .filter(channelID -> !ownership.isLocal(channelID))
+          .toList();
+      if (!notOwned.isEmpty()) {
+        log.warn("Not the owner of the routes of {}, rejected forwarded webhook", notOwned);
+        count("not-owned");
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+    } else {
+      // the owners to the routes forwarded to them
+      var owners = new LinkedHashMap<String, List<String>>();
+      for (var channelID : channelIDsOf(body)) {
+        if (ownership.isLocal(channelID)) {
+          continue;
+        }
+        var owner = ownership.ownerOf(channelID);
+        // this node left in the lease file by a crash does not own the route either
+        if (owner.isEmpty() || owner.get().equals(leases.nodeURL())) {
+          log.warn("No node owns the route of {}, rejected webhook", channelID);
+          count("unowned");
+          response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+          return;
+        }
+        owners.computeIfAbsent(owner.get(), unused -> new ArrayList<>()).add(channelID);
+      }
+      for (var entry : owners.entrySet()) {
+        var owner = entry.getKey();
+        try {
+          forward(owner, ROUTES_JOINER.join(entry.getValue()), body, signature);
+          count("forwarded");
+        } catch (IOException e) {
+          log.warn("Failed to forward webhook to {}", owner, e);
+          count("failed");
+          response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+          return;
+        }
+      }
+    }
+    filterChain.doFilter(new CachedBodyRequest(request, body), response);
+  }
+
+  // the bridged Discord channels of the events
+  private @NotNull LinkedHashSet<String> channelIDsOf(byte @NotNull [] body) throws IOException {
+    var channelIDs = new LinkedHashSet<String>();
+    for (var event : objectMapper.readTree(body).path("events")) {
+      var source = event.path("source");
+      Optional.ofNullable(source.path(source.has("groupId") ? "groupId" : "roomId").textValue())
+          .flatMap(routes::discordChannelOf)
+          .ifPresent(channelIDs::add);
+    }
+    return channelIDs;
+  }
+
+  // waits for the owner to respond, which it does once the events are queued
+  private void forward(@NotNull String owner, @NotNull String forwardedRoutes,
+      byte @NotNull [] body, @NotNull String signature) throws IOException {
+    var request = new Request.Builder().url(owner + handlerPath)
+        .header(SIGNATURE_HEADER, signature)
+        .header(ROUTES_HEADER, forwardedRoutes)
+        .header(FORWARDED_HEADER, sign(forwardedRoutes + "\n" + signature))
+        .post(RequestBody.create(body, JSON))
+        .build();
+    try (var response = httpClient.newCall(request).execute()) {
+      if (!response.isSuccessful()) {
+        throw new IOException("Unexpected response: " + response.code());
+      }
+    }
+  }
+
+  @Contract(pure = true)
+  private boolean verify(byte @NotNull [] body, @NotNull String signature) {
+    return MessageDigest.isEqual(sign(body).getBytes(StandardCharsets.US_ASCII),
+        signature.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Contract(pure = true)
+  private boolean verify(@NotNull String content, @NotNull String signature) {
+    return verify(content.getBytes(StandardCharsets.UTF_8), signature);
+  }
+
+  @Contract(pure = true)
+  private @NotNull String sign(byte @NotNull [] content) {
+    return BaseEncoding.base64().encode(hmac.hashBytes(content).asBytes());
+  }
+
+  @Contract(pure = true)
+  private @NotNull String sign(@NotNull String content) {
+    return sign(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void count(@NotNull String outcome) {
+    Counter.builder("line.webhook.forwards")
+        .description("Number of LINE webhooks forwarded to the owners of their routes")
+        .tag("outcome", outcome)
+        .register(meterRegistry)
+        .increment();
+  }
+
+  // the body is already read to find the routes
+  private static final class CachedBodyRequest extends HttpServletRequestWrapper {
+
+    private final byte @NotNull [] body;
+
+    CachedBodyRequest(@NotNull HttpServletRequest request, byte @NotNull [] body) {
+      super(request);
+      this.body = body;
+    }
+
+    @Override
+    public @NotNull ServletInputStream getInputStream() {
+      var input = new ByteArrayInputStream(body);
+      return new ServletInputStream() {
+        @Override
+        public boolean isFinished() {
+          return input.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setReadListener(@NotNull ReadListener readListener) {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read() {
+          return input.read();
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) {
+          return input.read(b, off, len);
+        }
+      };
+    }
+
+    @Override
+    public @NotNull BufferedReader getReader() {
+      return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+    }
+  }
+}
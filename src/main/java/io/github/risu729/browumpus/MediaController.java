@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.hash.Hashing;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+// serves spooled attachments so that LINE does not depend on expiring Discord CDN URLs
+// range and conditional requests are handled by Spring MVC from the resource and the headers
+@RestController
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@AllArgsConstructor
+public class MediaController {
+
+  @NotNull AttachmentSpool spool;
+  @NotNull MediaLinks links;
+
+  @GetMapping(MediaLinks.PATH + "/{key}/{filename}")
+  public @NotNull ResponseEntity<Resource> getMedia(@PathVariable @NotNull String key,
+      @PathVariable @NotNull String filename,
+      @RequestParam(MediaLinks.SIGNATURE_PARAMETER) @NotNull String signature,
+      @RequestParam(name = MediaLinks.NODE_PARAMETER, required = false) @Nullable String node) {
+    // spooled by another node unless forwarded by MediaForwarder
+    if (!links.verify(key, node, signature) || !links.isLocal(node)) {
+      return ResponseEntity.notFound().build();
+    }
+    return spool.find(key)
+        .map(entry -> ResponseEntity.ok()
+            // the content of a key never changes
+            .eTag(Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + "-" + entry.size())
+            .lastModified(entry.createdAt())
+            .cacheControl(CacheControl.maxAge(Duration.ofDays(1)).cachePublic().immutable())
+            .contentType(MediaTypeFactory.getMediaType(filename)
+                .orElse(MediaType.APPLICATION_OCTET_STREAM))
+            .body(entry.resource()))
+        .orElseGet(() -> ResponseEntity.notFound().build());
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.base.Splitter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// lets the media links reach any node of a cluster behind a load balancer
+// the attachments are spooled only on the node relaying the message, which the links name, so the
+// requests for them are forwarded to that node and its response is streamed back as is
+// it fails with 404 if the node has stopped, since its spool is gone with it, and with 503 if the
+// node fails to respond
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@AllArgsConstructor
+public class MediaForwarder extends OncePerRequestFilter {
+
+  // set on the forwarded requests, which are never forwarded again
+  private static final String FORWARDED_HEADER = "X-Browumpus-Forwarded";
+  private static final Splitter PATH_SPLITTER = Splitter.on('/');
+  // for the range and conditional requests, handled by the node serving the attachment
+  private static final List<String> REQUEST_HEADERS = List.of(HttpHeaders.RANGE,
+      HttpHeaders.IF_RANGE,
+      HttpHeaders.IF_NONE_MATCH,
+      HttpHeaders.IF_MODIFIED_SINCE);
+  private static final List<String> RESPONSE_HEADERS = List.of(HttpHeaders.CONTENT_TYPE,
+      HttpHeaders.CONTENT_LENGTH,
+      HttpHeaders.CONTENT_RANGE,
+      HttpHeaders.ACCEPT_RANGES,
+      HttpHeaders.ETAG,
+      HttpHeaders.LAST_MODIFIED,
+      HttpHeaders.CACHE_CONTROL);
+
+  @NotNull OkHttpClient httpClient = new OkHttpClient();
+  @NotNull ClusterLeases leases;
+  @NotNull MediaLinks links;
+  @NotNull MeterRegistry meterRegistry;
+
+  @Override
+  protected boolean shouldNotFilter(@NotNull HttpServletRequest request) {
+    return !leases.isEnabled() || !(HttpMethod.GET.matches(request.getMethod())
+        || HttpMethod.HEAD.matches(request.getMethod()))
+        || !request.getRequestURI().startsWith(MediaLinks.PATH + "/");
+  }
+
+  @Override
+  protected void doFilterInternal(@NotNull HttpServletRequest request,
+      @NotNull HttpServletResponse response, @NotNull FilterChain filterChain)
+      throws ServletException, IOException {
+    var node = request.getParameter(MediaLinks.NODE_PARAMETER);
+    var key = keyOf(request.getRequestURI());
+    var signature = request.getParameter(MediaLinks.SIGNATURE_PARAMETER);
+    // served here, or left to be rejected by MediaController, including the forged links which
+    // would make this node a proxy to the others
+    if (links.isLocal(node) || request.getHeader(FORWARDED_HEADER) != null || key == null
+        || signature == null || !links.verify(key, node, signature)) {
+      filterChain.doFilter(request, response);
+      return;
+    }
+    var nodeURL = links.nodeURLOf(node);
+    // this node left in the lease file by a crash has lost the spool too
+    if (nodeURL.isEmpty() || nodeURL.get().equals(leases.nodeURL())) {
+      log.debug("Node {} of media {} has stopped", node, key);
+      count("gone");
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    try {
+      forward(nodeURL.get(), request, response);
+      count("forwarded");
+    } catch (IOException e) {
+      log.warn("Failed to forward media request to {}", nodeURL.get(), e);
+      count("failed");
+      // the status cannot be changed once the body is being streamed
+      if (response.isCommitted()) {
+        throw e;
+      }
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+  }
+
+  private void forward(@NotNull String nodeURL, @NotNull HttpServletRequest request,
+      @NotNull HttpServletResponse response) throws IOException {
+    var builder = new Request.Builder().url(
+            nodeURL + request.getRequestURI() + "?" + request.getQueryString())
+        .method(request.getMethod(), null)
+        .header(FORWARDED_HEADER, leases.nodeURL())
+        // disables the transparent gzip of OkHttp, which drops the content length
+        .header(HttpHeaders.ACCEPT_ENCODING, "identity");
+    for (var name : REQUEST_HEADERS) {
+      var value = request.getHeader(name);
+      if (value != null) {
+        builder.header(name, value);
+      }
+    }
+    try (var forwarded = httpClient.newCall(builder.build()).execute()) {
+      response.setStatus(forwarded.code());
+      for (var name : RESPONSE_HEADERS) {
+        var value = forwarded.header(name);
+        if (value != null) {
+          response.setHeader(name, value);
+        }
+      }
+      var body = forwarded.body();
+      if (body != null) {
+        try (var input = body.byteStream()) {
+          input.transferTo(response.getOutputStream());
+        }
+      }
+    }
+  }
+
+  // the key in the path of MediaController, or null if not matched
+  @Contract(pure = true)
+  private static @Nullable String keyOf(@NotNull String requestURI) {
+    var segments = PATH_SPLITTER.splitToList(requestURI.substring(MediaLinks.PATH.length() + 1));
+    return segments.size() == 2 ? UriUtils.decode(segments.get(0), StandardCharsets.UTF_8) : null;
+  }
+
+  private void count(@NotNull String outcome) {
+    Counter.builder("media.forwards")
+        .description("Number of media requests forwarded to the nodes spooling the attachments")
+        .tag("outcome", outcome)
+        .register(meterRegistry)
+        .increment();
+  }
+}
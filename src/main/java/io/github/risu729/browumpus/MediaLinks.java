@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import jakarta.annotation.PostConstruct;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+// builds signed URLs of the media proxy so that only published attachments can be fetched
+// without a signing key of its own, the key is derived from the channel secret with a fixed label,
+// so that the secret which LINE signs the webhooks with is never used as is
+// when clustered, the URLs name the node which spooled the attachments, for MediaForwarder on the
+// other nodes to forward the requests to it, by an ID instead of the URL of the node, which is
+// not for the public, and the node holds the lease of the ID for the others to look the URL up
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class MediaLinks {
+
+  static final String PATH = "/media";
+
+  static final String SIGNATURE_PARAMETER = "s";
+  static final String NODE_PARAMETER = "n";
+
+  private static final String KEY_LABEL = "browumpus media links";
+
+  @NotNull String baseURL;
+  @NotNull HashFunction hmac;
+  @NotNull ClusterLeases leases;
+  // null unless clustered
+  @Nullable String node;
+
+  public MediaLinks(@Value("${browumpus.media.base-url}") @NotNull String baseURL,
+      @Value("${browumpus.media.signing-key}") @NotNull String signingKey,
+      @Value("${line.bot.channel-secret}") @NotNull String channelSecret,
+      @NotNull ClusterLeases leases) {
+    this.baseURL = baseURL;
+    this.hmac = Hashing.hmacSha256(signingKey.isBlank() ? deriveKey(channelSecret)
+        : signingKey.getBytes(StandardCharsets.UTF_8));
+    this.leases = leases;
+    this.node = leases.isEnabled() ? Hashing.sha256()
+        .hashString(leases.nodeURL(), StandardCharsets.UTF_8)
+        .toString()
+        .substring(0, 16) : null;
+  }
+
+  @PostConstruct
+  public void start() throws IOException {
+    if (node != null && !leases.tryAcquire(leaseOf(node))) {
+      throw new IllegalStateException(
+          "Another node has the same browumpus.cluster.node-url " + leases.nodeURL());
+    }
+  }
+
+  @Contract(pure = true)
+  public @NotNull URI uriOf(@NotNull String key, @NotNull String filename) {
+    return URI.create("%s%s/%s/%s?%s=%s%s".formatted(baseURL,
+        PATH,
+        UriUtils.encodePathSegment(key, StandardCharsets.UTF_8),
+        UriUtils.encodePathSegment(filename, StandardCharsets.UTF_8),
+        SIGNATURE_PARAMETER,
+        sign(key, node),
+        node == null ? "" : "&%s=%s".formatted(NODE_PARAMETER, node)));
+  }
+
+  @Contract(pure = true)
+  boolean verify(@NotNull String key, @Nullable String node, @NotNull String signature) {
+    return MessageDigest.isEqual(sign(key, node).getBytes(StandardCharsets.US_ASCII),
+        signature.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  // whether the attachments of the URLs naming the node are spooled here
+  @Contract(pure = true)
+  boolean isLocal(@Nullable String node) {
+    return node == null || node.equals(this.node);
+  }
+
+  // the URL of the node, or empty if it has stopped
+  @NotNull Optional<String> nodeURLOf(@NotNull String node) throws IOException {
+    return leases.holderOf(leaseOf(node));
+  }
+
+  @Contract(pure = true)
+  private static byte @NotNull [] deriveKey(@NotNull String channelSecret) {
+    return Hashing.hmacSha256(channelSecret.getBytes(StandardCharsets.UTF_8))
+        .hashString(KEY_LABEL, StandardCharsets.UTF_8)
+        .asBytes();
+  }
+
+  // covers the node too, so that the requests cannot be forwarded to another node
+  @Contract(pure = true)
+  private @NotNull String sign(@NotNull String key, @Nullable String node) {
+    // 128 bits are enough to prevent guessing
+    return BaseEncoding.base64Url()
+        .omitPadding()
+        .encode(hmac.hashString(node == null ? key : key + "\n" + node, StandardCharsets.UTF_8)
+            .asBytes(), 0, 16);
+  }
+
+  @Contract(pure = true)
+  private static @NotNull String leaseOf(@NotNull String node) {
+    return "media-" + node;
+  }
+}
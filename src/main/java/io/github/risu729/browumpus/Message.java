@@ -10,6 +10,8 @@ package io.github.risu729.browumpus;
 
 import com.google.common.base.Suppliers;
 import io.github.risu729.browumpus.util.FileUtil;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import lombok.Value;
 import lombok.experimental.Accessors;
 import org.jetbrains.annotations.Contract;
@@ -20,6 +22,7 @@ import java.io.InputStream;
 import java.net.URI;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Supplier;
 
@@ -33,6 +36,10 @@ public class Message {
   @Nullable String content;
   @Nullable List<Attachment> attachments;
   @NotNull Author author;
+  // not part of the message itself
+  @EqualsAndHashCode.Exclude
+  @ToString.Exclude
+  @Nullable MessageTrace trace;
 
   public Message(@NotNull String content, @NotNull Author author) {
     this(content, (List<Attachment>) null, author);
@@ -57,6 +64,19 @@ public class Message {
     this.content = content == null || content.isBlank() ? null : content;
     this.attachments = attachments == null ? null : List.copyOf(attachments);
     this.author = author;
+    this.trace = null;
+  }
+
+  private Message(@NotNull Message message, @NotNull MessageTrace trace) {
+    this.content = message.content;
+    this.attachments = message.attachments;
+    this.author = message.author;
+    this.trace = trace;
+  }
+
+  @Contract(pure = true)
+  public @NotNull Message withTrace(@NotNull MessageTrace trace) {
+    return new Message(this, trace);
   }
 
   @Contract(pure = true)
@@ -69,6 +89,12 @@ public class Message {
     return Optional.ofNullable(attachments).orElse(Collections.emptyList());
   }
 
+  // records nothing for messages restored from the outbox
+  @Contract(pure = true)
+  public @NotNull MessageTrace trace() {
+    return Objects.requireNonNullElse(trace, MessageTrace.none());
+  }
+
   @SuppressWarnings({"PublicInnerClass", "ClassWithTooManyConstructors"})
   @Accessors(fluent = true)
   @Value
@@ -80,41 +106,44 @@ public class Message {
     @Nullable Supplier<InputStream> stream;
     @Nullable URI previewURI;
     @Nullable Supplier<InputStream> previewStream;
+    // null if the content cannot be downloaded again, such as external contents
+    @Nullable AttachmentSource source;
 
     public Attachment(@NotNull String filename, @NotNull URI uri) {
-      this(filename, uri, null, null, null);
+      this(filename, uri, null, null, null, null);
     }
 
-    public Attachment(@NotNull String filename, @NotNull URI uri, @NotNull URI previewURI) {
-      this(filename, uri, null, previewURI, null);
+    public Attachment(@NotNull String filename, @NotNull URI uri, @Nullable URI previewURI) {
+      this(filename, uri, null, previewURI, null, null);
     }
 
     public Attachment(@NotNull String filename, @NotNull Supplier<InputStream> streamSupplier) {
-      this(filename, null, streamSupplier, null, null);
+      this(filename, null, streamSupplier, null, null, null);
     }
 
     public Attachment(@NotNull String filename, @NotNull Supplier<InputStream> streamSupplier,
         @NotNull Supplier<InputStream> previewStreamSupplier) {
-      this(filename, null, streamSupplier, null, previewStreamSupplier);
+      this(filename, null, streamSupplier, null, previewStreamSupplier, null);
     }
 
     public Attachment(@NotNull String filename, @NotNull URI uri,
         @NotNull Supplier<InputStream> streamSupplier) {
-      this(filename, uri, streamSupplier, null, null);
+      this(filename, uri, streamSupplier, null, null, null);
     }
 
-
-    private Attachment(@NotNull String filename, @Nullable URI uri,
+    public Attachment(@NotNull String filename, @Nullable URI uri,
         @Nullable Supplier<InputStream> streamSupplier, @Nullable URI previewURI,
-        @Nullable Supplier<InputStream> previewStreamSupplier) {
+        @Nullable Supplier<InputStream> previewStreamSupplier,
+        @Nullable AttachmentSource source) {
       checkArgument(uri != null || streamSupplier != null);
       this.filename = filename;
       this.extension = FileUtil.getFileExtension(filename);
       this.uri = uri;
-      this.stream = streamSupplier == null ? null : Suppliers.memoize(streamSupplier::get);
+      // not memoized to open a new stream for each read, which may be retried
+      this.stream = streamSupplier;
       this.previewURI = previewURI;
-      this.previewStream =
-          previewStreamSupplier == null ? null : Suppliers.memoize(previewStreamSupplier::get);
+      this.previewStream = previewStreamSupplier;
+      this.source = source;
     }
 
     @Contract(pure = true)
@@ -141,6 +170,11 @@ public class Message {
     public @NotNull Optional<InputStream> previewStream() {
       return Optional.ofNullable(previewStream).map(Supplier::get);
     }
+
+    @Contract(pure = true)
+    public @NotNull Optional<AttachmentSource> source() {
+      return Optional.ofNullable(source);
+    }
   }
 
   @SuppressWarnings("PublicInnerClass")
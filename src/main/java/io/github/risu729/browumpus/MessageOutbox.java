@@ -0,0 +1,593 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.linecorp.bot.client.exception.GeneralLineMessagingException;
+import com.linecorp.bot.client.exception.LineMessagingException;
+import com.linecorp.bot.client.exception.LineServerException;
+import com.linecorp.bot.client.exception.TooManyRequestsException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// journals converted messages to an append-only log before delivering them, so that messages in
+// flight survive restarts and are delivered at least once
+// records are [length][CRC32C][JSON] in segment files named by their base offset, and the
+// offset of the oldest unacknowledged record is checkpointed to delete old segments
+// journal writes are fsynced together every interval instead of once per message
+// failed sends are retried with exponential backoff, so a retried message may arrive after later
+// ones, and those which can never be delivered are written to the dead letter log and
+// acknowledged, while those still failing after the last attempt are kept until the next startup
+@Slf4j
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class MessageOutbox {
+
+  private static final Pattern SEGMENT_PATTERN = Pattern.compile("segment-(\\d{20})\\.log");
+  private static final String CHECKPOINT_FILENAME = "checkpoint";
+  // JSON lines of the messages given up, never deleted
+  private static final String DEAD_LETTERS_FILENAME = "dead-letters.jsonl";
+  private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+  @NotNull Path dir;
+  long segmentSize;
+  @NotNull Duration retention;
+  @NotNull ObjectMapper objectMapper;
+  @NotNull AttachmentFactory attachmentFactory;
+  @NotNull Map<Destination, MessageSender> senders;
+  @NotNull ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("outbox-flusher-%d").setDaemon(true).build());
+  // only schedules the retries, the senders do not block
+  @NotNull ScheduledExecutorService retrier = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("outbox-retrier-%d").setDaemon(true).build());
+  int maxAttempts;
+  @NotNull Duration initialBackoff;
+  @NotNull Duration maxBackoff;
+  // keys of messages journaled recently, including the ones found on startup
+  @NotNull Cache<String, Boolean> recentKeys;
+  // offsets of the records not acknowledged yet
+  @NotNull NavigableSet<Long> inFlight = new ConcurrentSkipListSet<>();
+  // guards the segment and the fields below, not a monitor to avoid pinning virtual threads
+  @NotNull Lock lock = new ReentrantLock();
+  // completed after the appended records are fsynced
+  @NotNull List<CompletableFuture<Void>> syncWaiters = new ArrayList<>();
+  // records found on startup which were not acknowledged, replayed when the application is ready
+  @NotNull Map<String, Recovered> unacknowledged = new LinkedHashMap<>();
+  @NotNull MeterRegistry meterRegistry;
+  @NotNull Timer journalTime;
+  @NotNull Counter duplicates;
+  @NotNull Counter retries;
+  @NotNull Counter deadLetters;
+  @NonFinal @NotNull FileChannel segment;
+  @NonFinal long segmentBase;
+  @NonFinal long nextOffset;
+  @NonFinal long checkpoint;
+
+  public MessageOutbox(@Value("${browumpus.outbox.dir}") @NotNull Path dir,
+      @Value("${browumpus.outbox.segment-size}") @NotNull DataSize segmentSize,
+      @Value("${browumpus.outbox.fsync-interval}") @NotNull Duration fsyncInterval,
+      @Value("${browumpus.outbox.retention}") @NotNull Duration retention,
+      @Value("${browumpus.outbox.recent-keys}") int recentKeys,
+      @Value("${browumpus.outbox.retry.max-attempts}") int maxAttempts,
+      @Value("${browumpus.outbox.retry.initial-backoff}") @NotNull Duration initialBackoff,
+      @Value("${browumpus.outbox.retry.max-backoff}") @NotNull Duration maxBackoff,
+      @NotNull ObjectMapper objectMapper, @NotNull AttachmentFactory attachmentFactory,
+      @NotNull LineSender lineSender, @NotNull DiscordSender discordSender,
+      @NotNull MeterRegistry meterRegistry) throws IOException {
+    checkArgument(!fsyncInterval.isNegative() && !fsyncInterval.isZero());
+    checkArgument(maxAttempts > 0);
+    this.dir = Files.createDirectories(dir);
+    this.segmentSize = segmentSize.toBytes();
+    this.retention = retention;
+    this.objectMapper = objectMapper;
+    this.attachmentFactory = attachmentFactory;
+    this.senders = Map.of(Destination.LINE, lineSender, Destination.DISCORD, discordSender);
+    this.recentKeys = CacheBuilder.newBuilder().maximumSize(recentKeys).build();
+    this.maxAttempts = maxAttempts;
+    this.initialBackoff = initialBackoff;
+    this.maxBackoff = maxBackoff;
+    this.meterRegistry = meterRegistry;
+    this.journalTime = Timer.builder("outbox.journal")
+        .description("Time to journal a message until it is durable")
+        .register(meterRegistry);
+    this.duplicates = Counter.builder("outbox.duplicates")
+        .description("Number of messages skipped as already journaled")
+        .register(meterRegistry);
+    this.retries = Counter.builder("outbox.retries")
+        .description("Number of sends retried after a transient failure")
+        .register(meterRegistry);
+    this.deadLetters = Counter.builder("outbox.dead.letters")
+        .description("Number of messages given up as they can never be delivered")
+        .register(meterRegistry);
+    Gauge.builder("outbox.in.flight", inFlight, Set::size)
+        .description("Number of journaled messages not acknowledged yet")
+        .register(meterRegistry);
+
+    recover();
+    flusher.scheduleWithFixedDelay(this::flush, fsyncInterval.toNanos(), fsyncInterval.toNanos(),
+        TimeUnit.NANOSECONDS);
+  }
+
+  // journals the message and blocks until it is durable, then sends it
+  // the message is skipped if a message with the same key is already journaled
+  public @NotNull CompletableFuture<Void> deliver(@NotNull String key,
+      @NotNull Destination destination, @NotNull String to, @NotNull Message message) {
+    if (recentKeys.asMap().putIfAbsent(key, true) != null) {
+      duplicates.increment();
+      log.info("Skipped duplicate message: {}", key);
+      return CompletableFuture.completedFuture(null);
+    }
+    long offset;
+    var durable = new CompletableFuture<Void>();
+    var journaling = Timer.start();
+    var journalSpan = message.trace().start("journal");
+    try {
+      var record = objectMapper.writeValueAsBytes(new Journaled(key, destination, to,
+          StoredMessage.of(message)));
+      lock.lock();
+      try {
+        offset = append(record);
+        inFlight.add(offset);
+        syncWaiters.add(durable);
+      } finally {
+        lock.unlock();
+      }
+    } catch (IOException e) {
+      recentKeys.invalidate(key);
+      return CompletableFuture.failedFuture(e);
+    }
+    try {
+      durable.join();
+    } catch (CompletionException e) {
+      return CompletableFuture.failedFuture(e.getCause());
+    } finally {
+      journaling.stop(journalTime);
+      journalSpan.close();
+    }
+    return send(key, offset, destination, to, message);
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void replay() {
+    Map<String, Recovered> replaying;
+    lock.lock();
+    try {
+      replaying = new LinkedHashMap<>(unacknowledged);
+      unacknowledged.clear();
+    } finally {
+      lock.unlock();
+    }
+    if (replaying.isEmpty()) {
+      return;
+    }
+    log.info("Replaying {} messages from the outbox", replaying.size());
+    replaying.values().forEach(recovered -> {
+      var offset = recovered.offset();
+      var journaled = recovered.journaled();
+      assert journaled.destination() != null && journaled.to() != null
+          && journaled.message() != null;
+      Message message;
+      try {
+        message = restore(journaled.message());
+      } catch (RuntimeException e) {
+        log.error("Failed to restore message: {}", journaled.key(), e);
+        deadLetter(journaled, offset, e);
+        return;
+      }
+      send(journaled.key(), offset, journaled.destination(), journaled.to(), message);
+    });
+  }
+
+  // the messages waiting for a retry are replayed on the next startup
+  @PreDestroy
+  public void close() throws IOException {
+    retrier.shutdownNow();
+    flusher.shutdown();
+    flush();
+    lock.lock();
+    try {
+      segment.close();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // completes when the message is delivered, given up, or failed on the last attempt
+  private @NotNull CompletableFuture<Void> send(@NotNull String key, long offset,
+      @NotNull Destination destination, @NotNull String to, @NotNull Message message) {
+    var result = new CompletableFuture<Void>();
+    attempt(key, offset, destination, to, message, 1, result);
+    return result;
+  }
+
+  private void attempt(@NotNull String key, long offset, @NotNull Destination destination,
+      @NotNull String to, @NotNull Message message, int attempt,
+      @NotNull CompletableFuture<Void> result) {
+    sendOnce(destination, to, message).whenComplete((unused, e) -> {
+      if (e == null) {
+        acknowledge(key, offset);
+        result.complete(null);
+      } else if (isPermanent(e)) {
+        log.error("Failed to deliver message, giving up: {}", key, e);
+        deadLetter(new Journaled(key, destination, to, StoredMessage.of(message)), offset, e);
+        result.completeExceptionally(e);
+      } else if (attempt >= maxAttempts) {
+        // kept in the outbox to retry on the next startup
+        log.error("Failed to deliver message after {} attempts: {}", attempt, key, e);
+        result.completeExceptionally(e);
+      } else {
+        var backoff = backoffOf(attempt);
+        log.warn("Failed to deliver message, retrying in {} ms: {}", backoff.toMillis(), key, e);
+        retries.increment();
+        try {
+          retrier.schedule(() -> attempt(key, offset, destination, to, message, attempt + 1,
+              result), backoff.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException rejected) {
+          // shutting down, and replayed on the next startup
+          result.completeExceptionally(e);
+        }
+      }
+    });
+  }
+
+  private @NotNull CompletableFuture<Void> sendOnce(@NotNull Destination destination,
+      @NotNull String to, @NotNull Message message) {
+    CompletableFuture<Void> sent;
+    var sending = Timer.start();
+    try {
+      sent = senders.get(destination).send(to, message);
+    } catch (RuntimeException e) {
+      sent = CompletableFuture.failedFuture(e);
+    }
+    return sent.whenComplete((unused, e) -> sending.stop(Timer.builder("bridge.send")
+        .description("Time to send a message to the destination")
+        .tag("destination", destination.name().toLowerCase(Locale.ROOT))
+        .tag("outcome", e == null ? "success"
+            : Throwables.getRootCause(e) instanceof UnsupportedOperationException ? "unsupported"
+                : "failure")
+        .register(meterRegistry)));
+  }
+
+  @Contract(pure = true)
+  private @NotNull Duration backoffOf(int attempt) {
+    // doubled for each attempt, without overflowing
+    var backoff = initialBackoff.multipliedBy(1L << Math.min(attempt - 1, 30));
+    return backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff;
+  }
+
+  // messages the destination cannot take and requests it rejects as invalid, rather than
+  // failures of the destination or the network and rate limits
+  @Contract(pure = true)
+  static boolean isPermanent(@NotNull Throwable error) {
+    return Throwables.getCausalChain(error)
+        .stream()
+        .anyMatch(cause -> cause instanceof UnsupportedOperationException
+            || cause instanceof DiscordWebhookDispatcher.WebhookRejectedException rejected
+            && rejected.code() < 500
+            || cause instanceof LineMessagingException
+            && !(cause instanceof TooManyRequestsException || cause instanceof LineServerException
+            || cause instanceof GeneralLineMessagingException));
+  }
+
+  // the message is kept in the dead letter log, and acknowledged so that it is not replayed
+  private void deadLetter(@NotNull Journaled journaled, long offset, @NotNull Throwable error) {
+    deadLetters.increment();
+    try {
+      var line = objectMapper.writeValueAsBytes(new DeadLetter(journaled.key(),
+          journaled.destination(), journaled.to(), journaled.message(), error.toString(),
+          Instant.now().toString()));
+      lock.lock();
+      try (var channel = FileChannel.open(dir.resolve(DEAD_LETTERS_FILENAME),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+        channel.write(ByteBuffer.wrap(line));
+        channel.write(ByteBuffer.wrap(new byte[]{'\n'}));
+      } finally {
+        lock.unlock();
+      }
+    } catch (IOException e) {
+      log.error("Failed to write dead letter: {}", journaled.key(), e);
+    }
+    acknowledge(journaled.key(), offset);
+  }
+
+  private void acknowledge(@NotNull String key, long offset) {
+    try {
+      var record = objectMapper.writeValueAsBytes(new Journaled(key, null, null, null));
+      lock.lock();
+      try {
+        append(record);
+        inFlight.remove(offset);
+      } finally {
+        lock.unlock();
+      }
+    } catch (IOException e) {
+      // delivered again after restart
+      log.error("Failed to acknowledge message: {}", key, e);
+    }
+  }
+
+  private @NotNull Message restore(@NotNull StoredMessage stored) {
+    return new Message(stored.content(),
+        stored.attachments().stream().map(attachment -> attachment.source() == null
+            ? new Message.Attachment(attachment.filename(),
+                attachment.uri(),
+                null,
+                attachment.previewURI(),
+                null,
+                null)
+            : attachmentFactory.create(attachment.source())).toList(),
+        new Message.Author(stored.authorName(), stored.authorURI()));
+  }
+
+  // returns the offset of the record
+  private long append(byte @NotNull [] record) throws IOException {
+    if (segment.position() > 0 && segment.position() + HEADER_SIZE + record.length > segmentSize) {
+      rollSegment();
+    }
+    var buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+    buffer.putInt(record.length)
+        .putInt(Hashing.crc32c().hashBytes(record).asInt())
+        .put(record)
+        .flip();
+    var offset = nextOffset;
+    while (buffer.hasRemaining()) {
+      segment.write(buffer);
+    }
+    nextOffset += HEADER_SIZE + record.length;
+    return offset;
+  }
+
+  private void rollSegment() throws IOException {
+    // flushed before closed, so that waiting appenders can be completed by the next flush
+    segment.force(false);
+    segment.close();
+    segmentBase = nextOffset;
+    segment = FileChannel.open(segmentPath(segmentBase), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+  }
+
+  private void flush() {
+    List<CompletableFuture<Void>> waiters;
+    long newCheckpoint;
+    lock.lock();
+    try {
+      waiters = List.copyOf(syncWaiters);
+      syncWaiters.clear();
+      try {
+        if (segment.isOpen()) {
+          segment.force(false);
+        }
+      } catch (IOException e) {
+        // the records may be lost, so the appenders fail instead of sending
+        log.error("Failed to flush the outbox", e);
+        waiters.forEach(waiter -> waiter.completeExceptionally(e));
+        return;
+      }
+      newCheckpoint = inFlight.isEmpty() ? nextOffset : inFlight.first();
+    } finally {
+      lock.unlock();
+    }
+    waiters.forEach(waiter -> waiter.complete(null));
+
+    if (newCheckpoint > checkpoint) {
+      try {
+        writeCheckpoint(newCheckpoint);
+        deleteSegmentsBefore(newCheckpoint);
+      } catch (IOException e) {
+        log.error("Failed to checkpoint the outbox", e);
+      }
+    }
+  }
+
+  private void writeCheckpoint(long offset) throws IOException {
+    var temp = dir.resolve(CHECKPOINT_FILENAME + ".tmp");
+    try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(ByteBuffer.wrap(Long.toString(offset).getBytes(StandardCharsets.US_ASCII)));
+      channel.force(false);
+    }
+    Files.move(temp, dir.resolve(CHECKPOINT_FILENAME), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    checkpoint = offset;
+  }
+
+  // deletes the segments whose records are all before the offset
+  // kept for the retention to detect redelivered messages after restart
+  private void deleteSegmentsBefore(long offset) throws IOException {
+    var bases = listSegmentBases();
+    var expiredAt = Instant.now().minus(retention);
+    for (var i = 0; i < bases.size() - 1; i++) {
+      var path = segmentPath(bases.get(i));
+      if (bases.get(i + 1) <= offset
+          && Files.getLastModifiedTime(path).toInstant().isBefore(expiredAt)) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  private void recover() throws IOException {
+    var checkpointFile = dir.resolve(CHECKPOINT_FILENAME);
+    checkpoint = Files.exists(checkpointFile)
+        ? Long.parseLong(Files.readString(checkpointFile, StandardCharsets.US_ASCII).strip())
+        : 0;
+    deleteSegmentsBefore(checkpoint);
+
+    var bases = listSegmentBases();
+    for (var i = 0; i < bases.size(); i++) {
+      var base = bases.get(i);
+      if (!scan(base)) {
+        // records after a torn record cannot be trusted
+        for (var later : bases.subList(i + 1, bases.size())) {
+          log.warn("Deleting outbox segment after a torn record: {}", segmentPath(later));
+          Files.delete(segmentPath(later));
+        }
+        bases = bases.subList(0, i + 1);
+        break;
+      }
+    }
+
+    segmentBase = bases.isEmpty() ? checkpoint : bases.get(bases.size() - 1);
+    segment = FileChannel.open(segmentPath(segmentBase), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    nextOffset = segmentBase + segment.size();
+    segment.position(segment.size());
+    unacknowledged.values().forEach(recovered -> inFlight.add(recovered.offset()));
+    log.info("Recovered the outbox at offset {} with {} unacknowledged messages", nextOffset,
+        unacknowledged.size());
+  }
+
+  // returns false if the segment ends with a torn record, which is truncated
+  private boolean scan(long base) throws IOException {
+    var path = segmentPath(base);
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      var header = ByteBuffer.allocate(HEADER_SIZE);
+      long position = 0;
+      while (position < channel.size()) {
+        header.clear();
+        if (channel.read(header, position) < HEADER_SIZE) {
+          return truncate(channel, path, position);
+        }
+        header.flip();
+        var length = header.getInt();
+        var checksum = header.getInt();
+        if (length < 0 || position + HEADER_SIZE + length > channel.size()) {
+          return truncate(channel, path, position);
+        }
+        var record = ByteBuffer.allocate(length);
+        channel.read(record, position + HEADER_SIZE);
+        if (record.hasRemaining()
+            || Hashing.crc32c().hashBytes(record.array()).asInt() != checksum) {
+          return truncate(channel, path, position);
+        }
+
+        var journaled = objectMapper.readValue(record.array(), Journaled.class);
+        recentKeys.put(journaled.key(), true);
+        if (journaled.message() == null) {
+          unacknowledged.remove(journaled.key());
+        } else if (base + position >= checkpoint) {
+          unacknowledged.put(journaled.key(), new Recovered(base + position, journaled));
+        }
+        position += HEADER_SIZE + length;
+      }
+      return true;
+    }
+  }
+
+  private static boolean truncate(@NotNull FileChannel channel, @NotNull Path path,
+      long position) throws IOException {
+    log.warn("Truncating a torn record in {} at {}", path, position);
+    channel.truncate(position);
+    channel.force(false);
+    return false;
+  }
+
+  private @NotNull List<Long> listSegmentBases() throws IOException {
+    try (var files = Files.list(dir)) {
+      return files.map(path -> SEGMENT_PATTERN.matcher(path.getFileName().toString()))
+          .filter(Matcher::matches)
+          .map(matcher -> Long.parseLong(matcher.group(1)))
+          .sorted()
+          .toList();
+    }
+  }
+
+  @Contract(pure = true)
+  private @NotNull Path segmentPath(long base) {
+    return dir.resolve("segment-%020d.log".formatted(base));
+  }
+
+  @SuppressWarnings("PublicInnerClass")
+  public enum Destination {
+    LINE, DISCORD
+  }
+
+  // an acknowledgement if the message is null
+  private record Journaled(@NotNull String key, @Nullable Destination destination,
+                           @Nullable String to, @Nullable StoredMessage message) {}
+
+  private record Recovered(long offset, @NotNull Journaled journaled) {}
+
+  private record DeadLetter(@NotNull String key, @Nullable Destination destination,
+                            @Nullable String to, @Nullable StoredMessage message,
+                            @NotNull String error, @NotNull String failedAt) {}
+
+  // attachments are stored as their sources, and downloaded again on restore
+  private record StoredMessage(@Nullable String content,
+                               @NotNull List<StoredAttachment> attachments,
+                               @NotNull String authorName, @Nullable URI authorURI) {
+
+    @Contract(pure = true)
+    static @NotNull StoredMessage of(@NotNull Message message) {
+      return new StoredMessage(message.content().orElse(null),
+          message.attachments().stream().map(attachment -> new StoredAttachment(
+              attachment.filename(),
+              attachment.uri().orElse(null),
+              attachment.previewURI().orElse(null),
+              attachment.source().orElse(null))).toList(),
+          message.author().name(),
+          message.author().uri().orElse(null));
+    }
+  }
+
+  private record StoredAttachment(@NotNull String filename, @Nullable URI uri,
+                                  @Nullable URI previewURI, @Nullable AttachmentSource source) {}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// runs conversion and delivery off the listener threads
+// tasks with the same queue and key are run sequentially in submission order
+// the number of waiting and running tasks is reported per queue
+@Slf4j
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class MessageRelay {
+
+  @NotNull ExecutorService workers;
+  @NotNull Map<String, Executor> lanes = new ConcurrentHashMap<>();
+  @NotNull Map<String, AtomicInteger> depths = new ConcurrentHashMap<>();
+  @NotNull MeterRegistry meterRegistry;
+  @NotNull Semaphore capacity;
+  @NotNull OverflowPolicy overflowPolicy;
+  @NotNull Duration offerTimeout;
+  @NotNull Duration drainTimeout;
+
+  public MessageRelay(@NotNull TaskExecutors taskExecutors, @NotNull MeterRegistry meterRegistry,
+      @Value("${browumpus.relay.parallelism}") int parallelism,
+      @Value("${browumpus.relay.queue-capacity}") int queueCapacity,
+      @Value("${browumpus.relay.overflow-policy}") @NotNull OverflowPolicy overflowPolicy,
+      @Value("${browumpus.relay.offer-timeout}") @NotNull Duration offerTimeout,
+      @Value("${browumpus.relay.drain-timeout}") @NotNull Duration drainTimeout) {
+    checkArgument(queueCapacity > 0);
+    // tasks in flight are bounded by the queue capacity on virtual threads
+    this.workers = taskExecutors.create("relay", parallelism);
+    this.meterRegistry = meterRegistry;
+    this.capacity = new Semaphore(queueCapacity);
+    this.overflowPolicy = overflowPolicy;
+    this.offerTimeout = offerTimeout;
+    this.drainTimeout = drainTimeout;
+  }
+
+  // returns false if the task is dropped by the overflow policy
+  public boolean submit(@NotNull String queue, @NotNull String key, @NotNull Runnable task) {
+    if (!acquire()) {
+      log.warn("Relay queue is full, dropped a message for {}", key);
+      return false;
+    }
+    var depth = depths.computeIfAbsent(queue, this::registerDepth);
+    depth.incrementAndGet();
+    var waiting = Timer.start();
+    lanes.computeIfAbsent(queue + ":" + key, k -> MoreExecutors.newSequentialExecutor(workers))
+        .execute(() -> {
+          waiting.stop(Timer.builder("relay.queue.delay")
+              .description("Time from submitting a message to starting to relay it")
+              .tag("queue", queue)
+              .register(meterRegistry));
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            log.error("Failed to relay a message for {}", key, e);
+          } finally {
+            depth.decrementAndGet();
+            capacity.release();
+          }
+        });
+    return true;
+  }
+
+  private @NotNull AtomicInteger registerDepth(@NotNull String queue) {
+    var depth = new AtomicInteger();
+    Gauge.builder("relay.queue.depth", depth, AtomicInteger::get)
+        .description("Number of messages waiting or being relayed")
+        .tag("queue", queue)
+        .register(meterRegistry);
+    return depth;
+  }
+
+  private boolean acquire() {
+    return switch (overflowPolicy) {
+      case DROP -> capacity.tryAcquire();
+      case BLOCK -> {
+        try {
+          yield capacity.tryAcquire(offerTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          yield false;
+        }
+      }
+    };
+  }
+
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    workers.shutdown();
+    if (!workers.awaitTermination(drainTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+      log.warn("Relay did not drain in {}, {} messages are discarded", drainTimeout,
+          workers.shutdownNow().size());
+    }
+  }
+
+  @SuppressWarnings("PublicInnerClass")
+  public enum OverflowPolicy {
+    // drop the message immediately if the queue is full
+    DROP,
+    // wait for the offer timeout, and then drop the message
+    BLOCK
+  }
+}
@@ -10,8 +10,12 @@ package io.github.risu729.browumpus;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.CompletableFuture;
+
 @SuppressWarnings("InterfaceMayBeAnnotatedFunctional")
 public interface MessageSender {
 
-  void send(@NotNull Message message);
+  // completes when the message is accepted by the destination
+  // the destination is a LINE group or room ID, or a Discord channel ID
+  @NotNull CompletableFuture<Void> send(@NotNull String to, @NotNull Message message);
 }
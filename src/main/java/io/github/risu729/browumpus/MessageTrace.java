@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// the stages of a message from the listener until the sender completes, timed by System#nanoTime
+// stages are recorded from any thread, and code without the trace at hand such as profile lookups
+// and downloads records to the trace activated on the current thread
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class MessageTrace {
+
+  private static final ThreadLocal<MessageTrace> CURRENT = new ThreadLocal<>();
+  // records nothing, for messages restored from the outbox
+  private static final MessageTrace NONE = new MessageTrace("", "", "", snapshot -> {});
+
+  static {
+    NONE.finished.set(true);
+  }
+
+  @NotNull String key;
+  @NotNull String source;
+  @NotNull String type;
+  @NotNull Instant startedAt = Instant.now();
+  long startNanos = System.nanoTime();
+  // guarded by itself
+  @NotNull List<Stage> stages = new ArrayList<>();
+  @NotNull AtomicBoolean finished = new AtomicBoolean();
+  @NotNull Consumer<Snapshot> onFinish;
+
+  MessageTrace(@NotNull String key, @NotNull String source, @NotNull String type,
+      @NotNull Consumer<Snapshot> onFinish) {
+    this.key = key;
+    this.source = source;
+    this.type = type;
+    this.onFinish = onFinish;
+  }
+
+  @Contract(pure = true)
+  public static @NotNull MessageTrace none() {
+    return NONE;
+  }
+
+  // a span of the trace activated on the current thread, which records nothing if none
+  public static @NotNull Span span(@NotNull String stage) {
+    return Objects.requireNonNullElse(CURRENT.get(), NONE).start(stage);
+  }
+
+  // ended by the returned span on any thread
+  public @NotNull Span start(@NotNull String stage) {
+    var start = System.nanoTime();
+    return () -> record(stage, start, System.nanoTime());
+  }
+
+  public void record(@NotNull String stage, long startNanos, long endNanos) {
+    if (finished.get()) {
+      return;
+    }
+    var thread = Thread.currentThread().getName();
+    synchronized (stages) {
+      stages.add(new Stage(stage, startNanos - this.startNanos, endNanos - startNanos, thread));
+    }
+  }
+
+  // the previous trace is restored when the scope is closed
+  public @NotNull Scope activate() {
+    var previous = CURRENT.get();
+    CURRENT.set(this);
+    return () -> {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    };
+  }
+
+  // runs the delivery with this trace activated
+  // the sender finishes this trace, and this finishes it if the delivery fails before the sender
+  public void runDelivery(@NotNull Supplier<CompletableFuture<Void>> delivery) {
+    try (var scope = activate()) {
+      delivery.get().whenComplete((unused, e) -> finish(e));
+    } catch (RuntimeException e) {
+      finish(e);
+      throw e;
+    }
+  }
+
+  // only the first call counts, stages recorded later are dropped
+  public void finish(@Nullable Throwable error) {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+    List<Stage> recorded;
+    synchronized (stages) {
+      recorded = List.copyOf(stages);
+    }
+    onFinish.accept(new Snapshot(key,
+        source,
+        type,
+        startedAt,
+        Duration.ofNanos(System.nanoTime() - startNanos),
+        error == null ? null : error.toString(),
+        recorded));
+  }
+
+  @FunctionalInterface
+  @SuppressWarnings("PublicInnerClass")
+  public interface Span extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  @FunctionalInterface
+  @SuppressWarnings("PublicInnerClass")
+  public interface Scope extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  // offsets are from the start of the trace
+  @SuppressWarnings("PublicInnerClass")
+  public record Stage(@NotNull String name, long offsetNanos, long durationNanos,
+                      @NotNull String thread) {}
+
+  @SuppressWarnings("PublicInnerClass")
+  public record Snapshot(@NotNull String key, @NotNull String source, @NotNull String type,
+                         @NotNull Instant startedAt, @NotNull Duration duration,
+                         @Nullable String error, @NotNull List<Stage> stages) {}
+}
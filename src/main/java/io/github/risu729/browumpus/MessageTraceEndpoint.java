@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+// /actuator/messagetraces lists the latest finished traces, and
+// /actuator/messagetraces/{key} shows the latest trace of the message
+@Component
+@Endpoint(id = "messagetraces")
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@AllArgsConstructor
+public class MessageTraceEndpoint {
+
+  @NotNull TraceRecorder recorder;
+
+  @ReadOperation
+  public @NotNull List<MessageTrace.Snapshot> traces() {
+    return recorder.recent();
+  }
+
+  // returns 404 if not found
+  @ReadOperation
+  public @Nullable MessageTrace.Snapshot trace(@Selector @NotNull String key) {
+    return recorder.recent()
+        .stream()
+        .filter(snapshot -> snapshot.key().equals(key))
+        .findFirst()
+        .orElse(null);
+  }
+}
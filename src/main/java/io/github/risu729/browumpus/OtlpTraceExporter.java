@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// exports finished message traces to an OpenTelemetry collector as OTLP/HTTP JSON
+// each message is a trace of a root span and a child span per stage
+// traces are sent in batches every interval, and dropped if the queue is full
+@Slf4j
+@Component
+@ConditionalOnProperty(value = "browumpus.trace.otlp.enabled", havingValue = "true")
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class OtlpTraceExporter {
+
+  private static final MediaType JSON = MediaType.get("application/json");
+  // SPAN_KIND_INTERNAL
+  private static final int SPAN_KIND = 1;
+
+  @NotNull OkHttpClient httpClient = new OkHttpClient();
+  @NotNull ObjectMapper objectMapper;
+  @NotNull String endpoint;
+  @NotNull BlockingQueue<MessageTrace.Snapshot> queue;
+  @NotNull ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("otlp-exporter-%d").setDaemon(true).build());
+
+  public OtlpTraceExporter(@NotNull ObjectMapper objectMapper,
+      @Value("${browumpus.trace.otlp.endpoint}") @NotNull String endpoint,
+      @Value("${browumpus.trace.otlp.queue-capacity}") int queueCapacity,
+      @Value("${browumpus.trace.otlp.interval}") @NotNull Duration interval) {
+    this.objectMapper = objectMapper;
+    this.endpoint = endpoint;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    exporter.scheduleWithFixedDelay(this::flush, interval.toNanos(), interval.toNanos(),
+        TimeUnit.NANOSECONDS);
+    log.info("Exporting message traces to {}", endpoint);
+  }
+
+  public void export(@NotNull MessageTrace.Snapshot snapshot) {
+    if (!queue.offer(snapshot)) {
+      log.debug("Dropped message trace: {}", snapshot.key());
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    exporter.shutdown();
+    flush();
+  }
+
+  private void flush() {
+    var snapshots = new ArrayList<MessageTrace.Snapshot>();
+    queue.drainTo(snapshots);
+    if (snapshots.isEmpty()) {
+      return;
+    }
+    try (var response = httpClient.newCall(new Request.Builder().url(endpoint)
+        .post(RequestBody.create(objectMapper.writeValueAsBytes(createRequest(snapshots)), JSON))
+        .build()).execute()) {
+      if (!response.isSuccessful()) {
+        log.warn("Failed to export {} message traces: {}", snapshots.size(), response.code());
+      }
+    } catch (IOException | RuntimeException e) {
+      // the collector is optional, so do not fail the bridge
+      log.warn("Failed to export {} message traces", snapshots.size(), e);
+    }
+  }
+
+  // see opentelemetry/proto/collector/trace/v1/trace_service.proto for the JSON mapping
+  @Contract(pure = true)
+  private static @NotNull Map<String, Object> createRequest(
+      @NotNull List<MessageTrace.Snapshot> snapshots) {
+    var spans = new ArrayList<Map<String, Object>>();
+    for (var snapshot : snapshots) {
+      var traceID = randomHex(16);
+      var rootID = randomHex(8);
+      var start = snapshot.startedAt();
+      var startNanos = TimeUnit.SECONDS.toNanos(start.getEpochSecond()) + start.getNano();
+      spans.add(Map.of("traceId", traceID,
+          "spanId", rootID,
+          "name", snapshot.source() + " " + snapshot.type(),
+          "kind", SPAN_KIND,
+          "startTimeUnixNano", Long.toString(startNanos),
+          "endTimeUnixNano", Long.toString(startNanos + snapshot.duration().toNanos()),
+          "attributes", List.of(attribute("browumpus.key", snapshot.key()),
+              attribute("browumpus.source", snapshot.source()),
+              attribute("browumpus.type", snapshot.type())),
+          // STATUS_CODE_OK or STATUS_CODE_ERROR
+          "status", snapshot.error() == null ? Map.of("code", 1)
+              : Map.of("code", 2, "message", snapshot.error())));
+      for (var stage : snapshot.stages()) {
+        var stageStart = startNanos + stage.offsetNanos();
+        spans.add(Map.of("traceId", traceID,
+            "spanId", randomHex(8),
+            "parentSpanId", rootID,
+            "name", stage.name(),
+            "kind", SPAN_KIND,
+            "startTimeUnixNano", Long.toString(stageStart),
+            "endTimeUnixNano", Long.toString(stageStart + stage.durationNanos()),
+            "attributes", List.of(attribute("thread.name", stage.thread()))));
+      }
+    }
+    return Map.of("resourceSpans", List.of(Map.of(
+        "resource", Map.of("attributes", List.of(attribute("service.name", "browumpus"))),
+        "scopeSpans", List.of(Map.of("scope", Map.of("name", "browumpus"), "spans", spans)))));
+  }
+
+  @Contract(pure = true)
+  private static @NotNull Map<String, Object> attribute(@NotNull String key,
+      @NotNull String value) {
+    return Map.of("key", key, "value", Map.of("stringValue", value));
+  }
+
+  private static @NotNull String randomHex(int bytes) {
+    var random = new byte[bytes];
+    ThreadLocalRandom.current().nextBytes(random);
+    return HexFormat.of().formatHex(random);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.JDA;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// decides which node of a cluster bridges each route, so that the messages of a route are only
+// relayed by one node and keep their order
+// a route is owned by the node whose shard receives the events of its Discord channel, which is
+// the only node that can tell it is bridged, and the owner holds the lease of the route for the
+// other nodes to forward the LINE webhooks of the route to it
+// the leases are claimed once JDA is ready and then periodically, to follow the changes of the
+// routes and the channels, and every route is local unless clustered
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class RouteOwnership {
+
+  private static final String TASK = "clusterRoutes";
+
+  @NotNull JDA jda;
+  @NotNull BridgeRoutes routes;
+  @NotNull ClusterLeases leases;
+  @NotNull StartupTasks startupTasks;
+  @NotNull Duration claimInterval;
+  @NotNull ScheduledExecutorService claimer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("route-claimer-%d").setDaemon(true).build());
+  // Discord channel IDs of the routes leased by this node, guarded by this
+  @NotNull Set<String> owned = new HashSet<>();
+
+  // lazy because JDA is built with the listener which depends on this through the webhook pool
+  public RouteOwnership(@Lazy @NotNull JDA jda, @NotNull BridgeRoutes routes,
+      @NotNull ClusterLeases leases, @NotNull StartupTasks startupTasks,
+      @Value("${browumpus.cluster.claim-interval}") @NotNull Duration claimInterval) {
+    this.jda = jda;
+    this.routes = routes;
+    this.leases = leases;
+    this.startupTasks = startupTasks;
+    this.claimInterval = claimInterval;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!leases.isEnabled()) {
+      return;
+    }
+    startupTasks.run(TASK, () -> {
+      startupTasks.completion(DiscordBotAutoConfiguration.GATEWAY_TASK).get();
+      claim();
+      claimer.scheduleWithFixedDelay(this::claimQuietly, claimInterval.toNanos(),
+          claimInterval.toNanos(), TimeUnit.NANOSECONDS);
+    });
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    claimer.shutdownNow();
+  }
+
+  // completed when the routes of this node are first claimed
+  public @NotNull CompletableFuture<Void> claimed() {
+    return leases.isEnabled() ? startupTasks.completion(TASK)
+        : CompletableFuture.completedFuture(null);
+  }
+
+  public boolean isLocal(@NotNull String channelID) {
+    return !leases.isEnabled() || leases.isHeld(leaseOf(channelID));
+  }
+
+  // the URL of the node owning the route, or empty if no live node owns it
+  public @NotNull Optional<String> ownerOf(@NotNull String channelID) throws IOException {
+    return leases.isEnabled() ? leases.holderOf(leaseOf(channelID))
+        : Optional.of(leases.nodeURL());
+  }
+
+  private synchronized void claim() throws IOException {
+    var local = routes.discordChannelIDs()
+        .stream()
+        .filter(channelID -> jda.getGuildChannelById(channelID) != null)
+        .collect(Collectors.toSet());
+    for (var channelID : local) {
+      if (owned.contains(channelID)) {
+        continue;
+      }
+      if (leases.tryAcquire(leaseOf(channelID))) {
+        owned.add(channelID);
+      } else {
+        // the shard of the channel is not held by another node unless shard-total differs
+        log.warn("Route of {} is owned by another node", channelID);
+      }
+    }
+    for (var iterator = owned.iterator(); iterator.hasNext(); ) {
+      var channelID = iterator.next();
+      if (!local.contains(channelID)) {
+        leases.release(leaseOf(channelID));
+        iterator.remove();
+      }
+    }
+  }
+
+  private void claimQuietly() {
+    try {
+      claim();
+    } catch (IOException | RuntimeException e) {
+      // keep the current leases until the next claim
+      log.error("Failed to claim routes", e);
+    }
+  }
+
+  @Contract(pure = true)
+  private static @NotNull String leaseOf(@NotNull String channelID) {
+    return "route-" + channelID;
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.health.CompositeHealthContributor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthContributor;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.NamedContributor;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// runs the slow steps of the startup such as the Discord login and the LINE webhook registration
+// concurrently in the background, each reported as a health contributor until it finishes
+// if deferred, the application starts without waiting for them and the readiness is down instead,
+// otherwise the startup waits for all of them and fails if any fails
+// a failed deferred task exits the application with 1 as the startup would fail, since the bridge
+// cannot work without it, and the platform restarts it on failure instead of leaving it down
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class StartupTasks implements CompositeHealthContributor {
+
+  @NotNull ExecutorService executor;
+  @NotNull MeterRegistry meterRegistry;
+  boolean deferred;
+  // sorted by the name for the health endpoint
+  @NotNull Map<String, Task> tasks = new ConcurrentSkipListMap<>();
+  // set once started if deferred, to exit when a task fails
+  @NonFinal volatile @Nullable ConfigurableApplicationContext context;
+  @NotNull AtomicBoolean exiting = new AtomicBoolean();
+
+  public StartupTasks(@NotNull TaskExecutors taskExecutors, @NotNull MeterRegistry meterRegistry,
+      @Value("${browumpus.startup.deferred}") boolean deferred) {
+    this.executor = taskExecutors.create("startup", 4);
+    this.meterRegistry = meterRegistry;
+    this.deferred = deferred;
+  }
+
+  // the task may wait for other tasks by their completions
+  public @NotNull CompletableFuture<Void> run(@NotNull String name, @NotNull Step step) {
+    var task = tasks.computeIfAbsent(name, Task::new);
+    task.start(step);
+    return task.future;
+  }
+
+  // completed when the task of the name finishes, whether it is started yet or not
+  public @NotNull CompletableFuture<Void> completion(@NotNull String name) {
+    return tasks.computeIfAbsent(name, Task::new).future;
+  }
+
+  @EventListener(ApplicationStartedEvent.class)
+  public void awaitUnlessDeferred(@NotNull ApplicationStartedEvent event) {
+    if (deferred) {
+      log.info("Started with {} startup tasks still running",
+          tasks.values().stream().filter(task -> !task.future.isDone()).count());
+      context = event.getApplicationContext();
+      // the tasks failed before started
+      tasks.values()
+          .stream()
+          .filter(task -> task.future.isCompletedExceptionally())
+          .findFirst()
+          .ifPresent(task -> exit(task.name));
+      return;
+    }
+    try {
+      CompletableFuture.allOf(tasks.values()
+          .stream()
+          .filter(Task::isStarted)
+          .map(task -> task.future)
+          .toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      throw new IllegalStateException("Startup task failed", e.getCause());
+    }
+  }
+
+  private void exit(@NotNull String failedTask) {
+    var context = this.context;
+    if (context == null || !exiting.compareAndSet(false, true)) {
+      return;
+    }
+    log.error("Exiting as startup task {} failed", failedTask);
+    // not on the task thread, which is interrupted when the context is closed
+    new Thread(() -> System.exit(SpringApplication.exit(context, () -> 1)), "startup-exit")
+        .start();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Override
+  public @Nullable HealthContributor getContributor(@NotNull String name) {
+    return tasks.get(name);
+  }
+
+  @Override
+  public @NotNull Iterator<NamedContributor<HealthContributor>> iterator() {
+    return tasks.entrySet()
+        .stream()
+        .map(entry -> NamedContributor.<HealthContributor>of(entry.getKey(), entry.getValue()))
+        .iterator();
+  }
+
+  @FunctionalInterface
+  @SuppressWarnings("PublicInnerClass")
+  public interface Step {
+
+    void run() throws Exception;
+  }
+
+  @FieldDefaults(level = AccessLevel.PRIVATE)
+  private final class Task implements HealthIndicator {
+
+    final @NotNull String name;
+    final @NotNull CompletableFuture<Void> future = new CompletableFuture<>();
+    // guarded by this
+    boolean started;
+    // System#nanoTime
+    long startedAt;
+    @Nullable Duration duration;
+    @Nullable Exception error;
+
+    Task(@NotNull String name) {
+      this.name = name;
+    }
+
+    synchronized boolean isStarted() {
+      return started;
+    }
+
+    synchronized void start(@NotNull Step step) {
+      if (started) {
+        throw new IllegalStateException("Startup task already started: " + name);
+      }
+      started = true;
+      startedAt = System.nanoTime();
+      executor.execute(() -> {
+        try {
+          step.run();
+          finish(null);
+        } catch (Exception e) {
+          if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+          }
+          finish(e);
+        }
+      });
+    }
+
+    private void finish(@Nullable Exception error) {
+      Duration took;
+      synchronized (this) {
+        took = Duration.ofNanos(System.nanoTime() - startedAt);
+        this.duration = took;
+        this.error = error;
+      }
+      Timer.builder("startup.task")
+          .description("Time to run a startup task in the background")
+          .tag("task", name)
+          .tag("outcome", error == null ? "success" : "failure")
+          .register(meterRegistry)
+          .record(took);
+      if (error == null) {
+        log.atInfo()
+            .addKeyValue("task", name)
+            .addKeyValue("durationMillis", took.toMillis())
+            .log("Finished startup task");
+        future.complete(null);
+      } else {
+        log.error("Startup task {} failed after {} ms", name, took.toMillis(), error);
+        future.completeExceptionally(error);
+        exit(name);
+      }
+    }
+
+    @Override
+    public synchronized @NotNull Health health() {
+      if (!started) {
+        return Health.outOfService().build();
+      }
+      if (duration == null) {
+        return Health.outOfService()
+            .withDetail("elapsedMillis", (System.nanoTime() - startedAt) / 1_000_000)
+            .build();
+      }
+      var builder = error == null ? Health.up() : Health.down(error);
+      return builder.withDetail("durationMillis", duration.toMillis()).build();
+    }
+  }
+}
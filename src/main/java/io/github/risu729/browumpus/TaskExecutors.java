@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// creates executors for blocking tasks such as downloads, lookups and sends
+// tasks run on their own virtual threads unless disabled, so that blocking does not hold
+// platform threads, and the platform thread pools are kept to compare against
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class TaskExecutors {
+
+  boolean virtual;
+
+  public TaskExecutors(@Value("${browumpus.threads.virtual}") boolean virtual) {
+    this.virtual = virtual;
+    log.info("Running blocking tasks on {} threads", virtual ? "virtual" : "platform");
+  }
+
+  // the number of platform threads is ignored for virtual threads
+  @Contract("_, _ -> new")
+  public @NotNull ExecutorService create(@NotNull String name, int platformThreads) {
+    checkArgument(platformThreads > 0);
+    if (virtual) {
+      return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+    return Executors.newFixedThreadPool(platformThreads,
+        new ThreadFactoryBuilder().setNameFormat(name + "-%d").build());
+  }
+
+  @Contract(pure = true)
+  public boolean isVirtual() {
+    return virtual;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+// generates small JPEG previews so that LINE clients do not download the originals for chat bubbles
+// previews are cached by the content hash of the original
+@Slf4j
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class ThumbnailGenerator {
+
+  private static final float[] QUALITIES = {0.8f, 0.6f, 0.4f};
+
+  @NotNull Cache<HashCode, byte[]> cache;
+  int maxDimension;
+  long maxSize;
+
+  public ThumbnailGenerator(@Value("${browumpus.thumbnail.max-dimension}") int maxDimension,
+      @Value("${browumpus.thumbnail.max-size}") @NotNull DataSize maxSize,
+      @Value("${browumpus.thumbnail.cache-size}") @NotNull DataSize cacheSize) {
+    this.maxDimension = maxDimension;
+    this.maxSize = maxSize.toBytes();
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(cacheSize.toBytes())
+        .<HashCode, byte[]>weigher((hash, thumbnail) -> thumbnail.length)
+        .build();
+  }
+
+  // the original is read twice, once for hashing and once for decoding on a cache miss
+  @Contract(pure = true)
+  public @NotNull Supplier<InputStream> thumbnail(@NotNull Supplier<InputStream> original) {
+    return () -> new ByteArrayInputStream(generate(original));
+  }
+
+  public byte @NotNull [] generate(@NotNull Supplier<InputStream> original) {
+    try {
+      HashCode hash;
+      try (var stream = new HashingInputStream(Hashing.sha256(), original.get())) {
+        ByteStreams.exhaust(stream);
+        hash = stream.hash();
+      }
+      return cache.get(hash, () -> {
+        try (var stream = original.get()) {
+          return encode(scale(read(stream)));
+        }
+      });
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw new UncheckedIOException(ioException);
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private @NotNull BufferedImage read(@NotNull InputStream stream) throws IOException {
+    try (var input = ImageIO.createImageInputStream(stream)) {
+      var readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        throw new IOException("Unsupported image format");
+      }
+      var reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        // skip pixels while decoding to avoid holding large originals in memory
+        // keep twice the target size for the quality of scaling
+        var subsampling = Math.max(1,
+            Math.min(reader.getWidth(0), reader.getHeight(0)) / (maxDimension * 2));
+        var param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  private @NotNull BufferedImage scale(@NotNull BufferedImage image) {
+    var scale = Math.min(1.0,
+        (double) maxDimension / Math.max(image.getWidth(), image.getHeight()));
+    var width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+    var height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+    // JPEG does not support transparency, so draw on a white background
+    var thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    var graphics = thumbnail.createGraphics();
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+          RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      graphics.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+    } finally {
+      graphics.dispose();
+    }
+    return thumbnail;
+  }
+
+  private byte @NotNull [] encode(@NotNull BufferedImage image) throws IOException {
+    var writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    try {
+      byte[] encoded = null;
+      // lower the quality until the preview fits in the size limit
+      for (var quality : QUALITIES) {
+        var output = new ByteArrayOutputStream();
+        try (var stream = new MemoryCacheImageOutputStream(output)) {
+          writer.setOutput(stream);
+          var param = writer.getDefaultWriteParam();
+          param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+          param.setCompressionQuality(quality);
+          writer.write(null, new IIOImage(image, null, null), param);
+        }
+        encoded = output.toByteArray();
+        if (encoded.length <= maxSize) {
+          break;
+        }
+      }
+      log.debug("Generated a thumbnail of {}x{} ({} bytes)", image.getWidth(), image.getHeight(),
+          encoded.length);
+      return encoded;
+    } finally {
+      writer.dispose();
+    }
+  }
+}
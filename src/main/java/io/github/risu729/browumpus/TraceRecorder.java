@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// starts message traces and keeps the latest finished ones in a ring buffer
+// finished traces are also logged with the latency, and passed to the OTLP exporter if enabled
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class TraceRecorder {
+
+  @NotNull AtomicReferenceArray<MessageTrace.Snapshot> ring;
+  // the number of traces recorded so far, and the next index modulo the capacity
+  @NotNull AtomicLong count = new AtomicLong();
+  @NotNull Optional<OtlpTraceExporter> exporter;
+
+  public TraceRecorder(@Value("${browumpus.trace.capacity}") int capacity,
+      @NotNull Optional<OtlpTraceExporter> exporter) {
+    checkArgument(capacity > 0);
+    this.ring = new AtomicReferenceArray<>(capacity);
+    this.exporter = exporter;
+  }
+
+  @Contract("_, _, _ -> new")
+  public @NotNull MessageTrace start(@NotNull String key, @NotNull String source,
+      @NotNull String type) {
+    return new MessageTrace(key, source, type, this::record);
+  }
+
+  // newest first
+  @Contract(pure = true)
+  public @NotNull List<MessageTrace.Snapshot> recent() {
+    var end = count.get();
+    var recent = new ArrayList<MessageTrace.Snapshot>();
+    for (var i = end - 1; i >= Math.max(0, end - ring.length()); i--) {
+      var snapshot = ring.get((int) (i % ring.length()));
+      // not written yet
+      if (snapshot != null) {
+        recent.add(snapshot);
+      }
+    }
+    return recent;
+  }
+
+  private void record(@NotNull MessageTrace.Snapshot snapshot) {
+    ring.set((int) (count.getAndIncrement() % ring.length()), snapshot);
+    var event = log.atInfo()
+        .addKeyValue("key", snapshot.key())
+        .addKeyValue("source", snapshot.source())
+        .addKeyValue("type", snapshot.type())
+        .addKeyValue("durationMillis", snapshot.duration().toMillis())
+        .addKeyValue("stages", snapshot.stages().size());
+    // the stack trace is logged where the delivery failed
+    if (snapshot.error() == null) {
+      event.log("Bridged message");
+    } else {
+      event.addKeyValue("error", snapshot.error()).log("Failed to bridge message");
+    }
+    exporter.ifPresent(exporter -> exporter.export(snapshot));
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.Executors;
+
+@Configuration
+public class WebServerConfiguration {
+
+  // handle webhook requests on virtual threads instead of the Tomcat worker pool
+  @Bean
+  @ConditionalOnProperty("browumpus.threads.virtual")
+  public @NotNull TomcatProtocolHandlerCustomizer<?> virtualThreadsCustomizer() {
+    return protocolHandler -> protocolHandler.setExecutor(Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("tomcat-handler-", 0).factory()));
+  }
+}
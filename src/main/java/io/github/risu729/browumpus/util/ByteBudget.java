@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus.util;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Semaphore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// limits the number of bytes held in memory at the same time across threads
+public final class ByteBudget {
+
+  private final Semaphore semaphore;
+  private final int limit;
+
+  private ByteBudget(int limit) {
+    checkArgument(limit > 0);
+    this.semaphore = new Semaphore(limit, true);
+    this.limit = limit;
+  }
+
+  @Contract("_ -> new")
+  public static @NotNull ByteBudget of(int limit) {
+    return new ByteBudget(limit);
+  }
+
+  public void acquire(int bytes) throws InterruptedException {
+    checkArgument(bytes <= limit, "%s bytes exceed the budget of %s bytes", bytes, limit);
+    semaphore.acquire(bytes);
+  }
+
+  public void release(int bytes) {
+    semaphore.release(bytes);
+  }
+
+  @Contract(pure = true)
+  public int available() {
+    return semaphore.availablePermits();
+  }
+
+  @Contract(pure = true)
+  public int limit() {
+    return limit;
+  }
+}
@@ -102,7 +102,7 @@ public final class FileUtil {
     for (int i = 1; Files.exists(generatedPath); i++) {
       generatedPath = dir.resolve(nameWithoutExtension + "_" + i + extension);
     }
-    return path;
+    return generatedPath;
   }
 
   @CheckReturnValue
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus.util;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.OptionalLong;
+
+// reads metadata of ISO base media files (mp4, m4a) without decoding them
+public final class Mp4Util {
+
+  private static final int MOOV = 0x6d6f6f76;
+  private static final int MVHD = 0x6d766864;
+
+  @Contract(" -> fail")
+  private Mp4Util() {
+    throw new AssertionError();
+  }
+
+  // returns empty if the movie header is not found
+  public static @NotNull OptionalLong readDurationMillis(@NotNull InputStream stream)
+      throws IOException {
+    var input = new DataInputStream(stream);
+    try {
+      while (true) {
+        long size = Integer.toUnsignedLong(input.readInt());
+        var type = input.readInt();
+        long headerSize = 8;
+        if (size == 1) {
+          size = input.readLong();
+          headerSize = 16;
+        }
+        if (type == MOOV) {
+          // descend into the movie box
+          continue;
+        }
+        if (type == MVHD) {
+          var version = input.readUnsignedByte();
+          input.skipNBytes(3); // flags
+          input.skipNBytes(version == 1 ? 16 : 8); // creation and modification time
+          long timescale = Integer.toUnsignedLong(input.readInt());
+          long duration = version == 1 ? input.readLong()
+              : Integer.toUnsignedLong(input.readInt());
+          return timescale == 0 ? OptionalLong.empty()
+              : OptionalLong.of(duration * 1000 / timescale);
+        }
+        // size 0 means the box extends to the end of the file
+        if (size == 0) {
+          return OptionalLong.empty();
+        }
+        input.skipNBytes(size - headerSize);
+      }
+    } catch (EOFException e) {
+      return OptionalLong.empty();
+    }
+  }
+}
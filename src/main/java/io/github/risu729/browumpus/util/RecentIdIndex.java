@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.hash.Hashing;
+import com.google.common.math.IntMath;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// remembers IDs seen within the window in a fixed size open addressing table
+// each slot packs a 40-bit fingerprint of the ID and the second it was seen into a long, so that
+// slots are checked and claimed with a single CAS without locks
+// when all probed slots are live, the oldest is overwritten, so the table never grows
+public final class RecentIdIndex {
+
+  private static final int PROBES = 8;
+  private static final int TIME_BITS = 24;
+  private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+
+  private final AtomicLongArray slots;
+  private final int mask;
+  private final long windowSeconds;
+  private final @NotNull Ticker ticker;
+  private final long origin;
+
+  private RecentIdIndex(int capacity, @NotNull Duration window, @NotNull Ticker ticker) {
+    checkArgument(capacity >= PROBES);
+    checkArgument(window.toSeconds() > 0 && window.toSeconds() < TIME_MASK);
+    this.slots = new AtomicLongArray(IntMath.ceilingPowerOfTwo(capacity));
+    this.mask = slots.length() - 1;
+    this.windowSeconds = window.toSeconds();
+    this.ticker = ticker;
+    this.origin = ticker.read();
+  }
+
+  @Contract("_, _ -> new")
+  public static @NotNull RecentIdIndex of(int capacity, @NotNull Duration window) {
+    return of(capacity, window, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  @Contract("_, _, _ -> new")
+  static @NotNull RecentIdIndex of(int capacity, @NotNull Duration window,
+      @NotNull Ticker ticker) {
+    return new RecentIdIndex(capacity, window, ticker);
+  }
+
+  // returns true if the ID was not seen within the window, and records it
+  public boolean add(@NotNull String id) {
+    var hash = hash(id);
+    var fingerprint = fingerprint(hash);
+    var now = now();
+    var slot = fingerprint << TIME_BITS | now;
+    var start = (int) hash & mask;
+
+    while (true) {
+      var victim = -1;
+      var victimValue = 0L;
+      var victimAge = -1L;
+      for (var i = 0; i < PROBES; i++) {
+        var index = (start + i) & mask;
+        var value = slots.get(index);
+        var age = value == 0 ? Long.MAX_VALUE : (now - value) & TIME_MASK;
+        if (value != 0 && value >>> TIME_BITS == fingerprint && age < windowSeconds) {
+          return false;
+        }
+        if (age > victimAge) {
+          victim = index;
+          victimValue = value;
+          victimAge = age;
+        }
+      }
+      // retry if another thread took the slot in the meantime
+      if (slots.compareAndSet(victim, victimValue, slot)) {
+        return true;
+      }
+    }
+  }
+
+  @Contract(pure = true)
+  public boolean contains(@NotNull String id) {
+    var hash = hash(id);
+    var fingerprint = fingerprint(hash);
+    var now = now();
+    var start = (int) hash & mask;
+    for (var i = 0; i < PROBES; i++) {
+      var value = slots.get((start + i) & mask);
+      if (value != 0 && value >>> TIME_BITS == fingerprint
+          && ((now - value) & TIME_MASK) < windowSeconds) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Contract(pure = true)
+  public int capacity() {
+    return slots.length();
+  }
+
+  @Contract(pure = true)
+  private static long hash(@NotNull String id) {
+    return Hashing.farmHashFingerprint64().hashString(id, StandardCharsets.UTF_8).asLong();
+  }
+
+  // the upper bits of the hash, never zero which marks empty slots
+  @Contract(pure = true)
+  private static long fingerprint(long hash) {
+    return hash >>> TIME_BITS | 1L << Long.SIZE - TIME_BITS - 1;
+  }
+
+  // seconds since created, wrapped to the time bits
+  private long now() {
+    return TimeUnit.NANOSECONDS.toSeconds(ticker.read() - origin) & TIME_MASK;
+  }
+}
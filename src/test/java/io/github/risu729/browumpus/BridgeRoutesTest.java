@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BridgeRoutesTest {
+
+  private static final BrowumpusProperties.Discord DISCORD = new BrowumpusProperties.Discord(
+      "token", "https://discord.com/api/v10/", "wss://gateway.discord.gg/");
+
+  @TempDir
+  Path dir;
+  BridgeRoutes routes;
+
+  @AfterEach
+  void tearDown() throws IOException {
+    if (routes != null) {
+      routes.close();
+    }
+  }
+
+  @Test
+  void loadsFallbackPairs() throws IOException {
+    routes = create("C1:100, R2:200");
+
+    assertThat(routes.discordChannelOf("C1")).contains("100");
+    assertThat(routes.lineIDOf("200")).contains("R2");
+  }
+
+  @Test
+  void revertsToFallbackWhenFileDeleted() throws Exception {
+    Files.writeString(file(), "{\"C1\": \"100\"}");
+    routes = create("C2:200");
+    assertThat(routes.discordChannelIDs()).containsExactly("100");
+
+    Files.delete(file());
+
+    await(() -> routes.discordChannelIDs().contains("200"));
+    assertThat(routes.discordChannelIDs()).containsExactly("200");
+  }
+
+  @Test
+  void clearsRoutesWhenFileDeletedWithoutFallback() throws Exception {
+    Files.writeString(file(), "{\"C1\": \"100\"}");
+    // the fallback left by the unset environment variables
+    routes = create(":");
+    assertThat(routes.discordChannelIDs()).containsExactly("100");
+
+    Files.delete(file());
+
+    await(() -> routes.discordChannelIDs().isEmpty());
+    assertThat(routes.discordChannelOf("C1")).isEmpty();
+  }
+
+  private @NotNull BridgeRoutes create(@NotNull String bridges) throws IOException {
+    return new BridgeRoutes(new BrowumpusProperties("example.com", bridges, file(),
+        new BrowumpusProperties.Line("token", "secret"), DISCORD), new ObjectMapper());
+  }
+
+  private @NotNull Path file() {
+    return dir.resolve("bridges.json");
+  }
+
+  private static void await(@NotNull BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (!condition.getAsBoolean()) {
+      assertThat(System.nanoTime()).as("condition met within 10 seconds").isLessThan(deadline);
+      Thread.sleep(50);
+    }
+  }
+}
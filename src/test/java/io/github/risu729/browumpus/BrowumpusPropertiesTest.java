@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BrowumpusPropertiesTest {
+
+  private static final BrowumpusProperties.Line LINE = new BrowumpusProperties.Line("token",
+      "secret");
+  private static final BrowumpusProperties.Discord DISCORD = new BrowumpusProperties.Discord(
+      "token", "https://discord.com/api/v10/", "wss://gateway.discord.gg/");
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void acceptsCompleteBridges() {
+    assertThatCode(() -> create("C1:100, R2:200")).doesNotThrowAnyException();
+  }
+
+  @Test
+  void reportsMissingBridges() {
+    assertThatThrownBy(() -> create(":")).hasMessageContaining("No bridges are configured");
+  }
+
+  @Test
+  void reportsIncompleteBridges() {
+    assertThatThrownBy(() -> create("C1:100,abc:,:200,C4"))
+        .hasMessageContaining("Incomplete bridge \"abc:\"")
+        .hasMessageContaining("Incomplete bridge \":200\"")
+        .hasMessageContaining("Incomplete bridge \"C4\"")
+        .hasMessageNotContaining("No bridges are configured");
+  }
+
+  @Test
+  void reportsDuplicateBridges() {
+    assertThatThrownBy(() -> create("C1:100,C2:100"))
+        .hasMessageContaining("Duplicate bridge \"C2:100\"");
+  }
+
+  @Test
+  void reportsMissingLineCredentials() {
+    assertThatThrownBy(() -> new BrowumpusProperties("example.com", "C1:100",
+        dir.resolve("bridges.json"), new BrowumpusProperties.Line("", null), DISCORD))
+        .hasMessageContaining("line.bot.channel-token is not set")
+        .hasMessageContaining("line.bot.channel-secret is not set");
+  }
+
+  @Test
+  void reportsAllProblemsTogether() {
+    assertThatThrownBy(() -> new BrowumpusProperties("", ":", dir.resolve("bridges.json"),
+        new BrowumpusProperties.Line("token", " "),
+        new BrowumpusProperties.Discord(null, "https://discord.com/api/v10",
+            "wss://gateway.discord.gg/")))
+        .hasMessageContaining("browumpus.host is not set")
+        .hasMessageContaining("No bridges are configured")
+        .hasMessageContaining("line.bot.channel-secret is not set")
+        .hasMessageContaining("browumpus.discord.token is not set")
+        .hasMessageContaining("browumpus.discord.api-base-url must end with /")
+        .hasMessageNotContaining("line.bot.channel-token");
+  }
+
+  private @NotNull BrowumpusProperties create(@NotNull String bridges) {
+    return new BrowumpusProperties("example.com", bridges, dir.resolve("bridges.json"), LINE,
+        DISCORD);
+  }
+}
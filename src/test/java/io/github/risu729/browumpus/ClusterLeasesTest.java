@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClusterLeasesTest {
+
+  @TempDir
+  Path dir;
+  ClusterLeases holder;
+  ClusterLeases other;
+
+  @BeforeEach
+  void setUp() {
+    holder = new ClusterLeases(true, dir, "http://node-1");
+    other = new ClusterLeases(true, dir, "http://node-2");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    holder.close();
+    other.close();
+  }
+
+  @Test
+  void readsHolderWithoutTakingLock() throws IOException {
+    assertThat(other.holderOf("route")).isEmpty();
+    assertThat(holder.tryAcquire("route")).isTrue();
+
+    assertThat(other.holderOf("route")).contains("http://node-1");
+    assertThat(holder.holderOf("route")).contains("http://node-1");
+    // the lease is still held after being looked up
+    assertThat(holder.isHeld("route")).isTrue();
+  }
+
+  @Test
+  void emptiesHolderWhenReleased() throws IOException {
+    assertThat(holder.tryAcquire("route")).isTrue();
+    holder.release("route");
+
+    assertThat(other.holderOf("route")).isEmpty();
+    assertThat(other.tryAcquire("route")).isTrue();
+    assertThat(holder.holderOf("route")).contains("http://node-2");
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentMatcher;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MessageOutboxTest {
+
+  private static final Message.Author AUTHOR = new Message.Author("author",
+      URI.create("https://example.com/icon.png"));
+
+  @TempDir
+  Path dir;
+  LineSender lineSender;
+  DiscordSender discordSender;
+  MessageOutbox outbox;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    lineSender = mock(LineSender.class);
+    discordSender = mock(DiscordSender.class);
+    outbox = open(3);
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    outbox.close();
+  }
+
+  @Test
+  void advancesCheckpointWhenDelivered() throws Exception {
+    succeed();
+    outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a")).get();
+    outbox.deliver("b", MessageOutbox.Destination.LINE, "group", message("b")).get();
+
+    awaitCheckpointAtEnd();
+  }
+
+  @Test
+  void keepsCheckpointWhileInFlight() throws Exception {
+    succeed();
+    outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a")).get();
+    var afterFirst = segmentSize();
+    await(() -> checkpoint() == afterFirst);
+
+    when(lineSender.send(eq("group"), any())).thenReturn(new CompletableFuture<>());
+    var pending = outbox.deliver("b", MessageOutbox.Destination.LINE, "group", message("b"));
+    Thread.sleep(100);
+
+    assertThat(pending).isNotDone();
+    assertThat(checkpoint()).isEqualTo(afterFirst);
+  }
+
+  @Test
+  void retriesTransientFailures() throws Exception {
+    when(lineSender.send(eq("group"), any()))
+        .thenReturn(CompletableFuture.failedFuture(new IOException("unavailable")))
+        .thenReturn(CompletableFuture.completedFuture(null));
+
+    outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a")).get();
+
+    verify(lineSender, times(2)).send(eq("group"), any());
+    awaitCheckpointAtEnd();
+    assertThat(dir.resolve("dead-letters.jsonl")).doesNotExist();
+  }
+
+  @Test
+  void keepsMessagesFailingEveryAttemptUntilRestart() throws Exception {
+    when(lineSender.send(eq("group"), any()))
+        .thenReturn(CompletableFuture.failedFuture(new IOException("unavailable")));
+
+    var delivery = outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a"));
+    await(delivery::isDone);
+    verify(lineSender, times(3)).send(eq("group"), any());
+    Thread.sleep(100);
+    assertThat(checkpoint()).isZero();
+
+    restart();
+    succeed();
+    outbox.replay();
+
+    verify(lineSender, timeout(1000)).send(eq("group"), any());
+    awaitCheckpointAtEnd();
+  }
+
+  @Test
+  void deadLettersPermanentFailures() throws Exception {
+    when(lineSender.send(eq("group"), any()))
+        .thenReturn(CompletableFuture.failedFuture(new UnsupportedOperationException()));
+    when(discordSender.send(eq("channel"), any())).thenReturn(CompletableFuture.failedFuture(
+        new DiscordWebhookDispatcher.WebhookRejectedException(400, "Invalid Form Body")));
+
+    var line = outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a"));
+    var discord = outbox.deliver("b", MessageOutbox.Destination.DISCORD, "channel",
+        message("b"));
+    await(() -> line.isDone() && discord.isDone());
+
+    verify(lineSender, times(1)).send(eq("group"), any());
+    verify(discordSender, times(1)).send(eq("channel"), any());
+    assertThat(Files.readAllLines(dir.resolve("dead-letters.jsonl"))).hasSize(2)
+        .anySatisfy(deadLetter -> assertThat(deadLetter).contains("\"key\":\"a\""))
+        .anySatisfy(deadLetter -> assertThat(deadLetter).contains("\"key\":\"b\""));
+    awaitCheckpointAtEnd();
+  }
+
+  @Test
+  void skipsDuplicateKeys() throws Exception {
+    succeed();
+    outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a")).get();
+    outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a")).get();
+    verify(lineSender, times(1)).send(eq("group"), any());
+
+    // the keys are recovered from the journal
+    restart();
+    outbox.replay();
+    outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a")).get();
+    verify(lineSender, never()).send(eq("group"), any());
+  }
+
+  @Test
+  void replaysUnacknowledgedMessagesAfterTornRecord() throws Exception {
+    when(lineSender.send(eq("group"), any())).thenReturn(new CompletableFuture<>());
+    outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a"));
+    outbox.deliver("b", MessageOutbox.Destination.LINE, "group", message("b"));
+    verify(lineSender, timeout(1000).times(2)).send(eq("group"), any());
+    var intact = segmentSize();
+    // a record cut off in the middle of its header by a crash
+    Files.write(segment(), new byte[]{0, 0, 0}, StandardOpenOption.APPEND);
+
+    restart();
+    assertThat(segmentSize()).isEqualTo(intact);
+    succeed();
+    outbox.replay();
+
+    verify(lineSender, timeout(1000).times(2)).send(eq("group"), any());
+    awaitCheckpointAtEnd();
+  }
+
+  @Test
+  void dropsRecordsAfterCorruptedRecord() throws Exception {
+    when(lineSender.send(eq("group"), any())).thenReturn(new CompletableFuture<>());
+    outbox.deliver("a", MessageOutbox.Destination.LINE, "group", message("a"));
+    var first = segmentSize();
+    outbox.deliver("b", MessageOutbox.Destination.LINE, "group", message("b"));
+    verify(lineSender, timeout(1000).times(2)).send(eq("group"), any());
+    // flips a byte in the body of the second record
+    var bytes = Files.readAllBytes(segment());
+    bytes[bytes.length - 2] ^= 1;
+    Files.write(segment(), bytes);
+
+    restart();
+    assertThat(segmentSize()).isEqualTo(first);
+    succeed();
+    outbox.replay();
+
+    verify(lineSender, timeout(1000)).send(eq("group"), argThat(contentIs("a")));
+    awaitCheckpointAtEnd();
+    verify(lineSender, never()).send(eq("group"), argThat(contentIs("b")));
+  }
+
+  private @NotNull MessageOutbox open(int maxAttempts) throws IOException {
+    return new MessageOutbox(dir, DataSize.ofMegabytes(1), Duration.ofMillis(10),
+        Duration.ofHours(1), 100, maxAttempts, Duration.ofMillis(1), Duration.ofMillis(10),
+        new ObjectMapper(), mock(AttachmentFactory.class), lineSender, discordSender,
+        new SimpleMeterRegistry());
+  }
+
+  private void restart() throws IOException {
+    outbox.close();
+    lineSender = mock(LineSender.class);
+    discordSender = mock(DiscordSender.class);
+    outbox = open(3);
+  }
+
+  private void succeed() {
+    when(lineSender.send(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+    when(discordSender.send(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+  }
+
+  private @NotNull Path segment() {
+    return dir.resolve("segment-%020d.log".formatted(0));
+  }
+
+  private long segmentSize() throws IOException {
+    return Files.size(segment());
+  }
+
+  private long checkpoint() {
+    try {
+      var checkpoint = dir.resolve("checkpoint");
+      return Files.exists(checkpoint)
+          ? Long.parseLong(Files.readString(checkpoint, StandardCharsets.US_ASCII).strip()) : 0;
+    } catch (IOException e) {
+      // being replaced
+      return -1;
+    }
+  }
+
+  private static @NotNull Message message(@NotNull String content) {
+    return new Message(content, AUTHOR);
+  }
+
+  // every record is acknowledged
+  private void awaitCheckpointAtEnd() throws InterruptedException {
+    await(() -> {
+      try {
+        return checkpoint() == segmentSize();
+      } catch (IOException e) {
+        return false;
+      }
+    });
+  }
+
+  private static @NotNull ArgumentMatcher<Message> contentIs(@NotNull String content) {
+    return message -> message.content().filter(content::equals).isPresent();
+  }
+
+  private static void await(@NotNull BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+    while (!condition.getAsBoolean()) {
+      assertThat(System.nanoTime()).as("condition met within 5 seconds").isLessThan(deadline);
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.browumpus.util;
+
+import com.google.common.base.Ticker;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecentIdIndexTest {
+
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+  };
+
+  @Test
+  void rejectsRepeatsWithinWindow() {
+    var index = RecentIdIndex.of(1024, Duration.ofSeconds(60), ticker);
+
+    assertThat(index.add("event")).isTrue();
+    assertThat(index.contains("event")).isTrue();
+    advance(Duration.ofSeconds(59));
+    assertThat(index.add("event")).isFalse();
+    assertThat(index.add("other")).isTrue();
+  }
+
+  @Test
+  void acceptsAgainAfterWindow() {
+    var index = RecentIdIndex.of(1024, Duration.ofSeconds(60), ticker);
+
+    assertThat(index.add("event")).isTrue();
+    advance(Duration.ofSeconds(60));
+    assertThat(index.contains("event")).isFalse();
+    assertThat(index.add("event")).isTrue();
+    // the window restarts from the second add
+    advance(Duration.ofSeconds(30));
+    assertThat(index.add("event")).isFalse();
+  }
+
+  @Test
+  void replacesOldestSlotWhenFull() {
+    // every ID probes all the 8 slots of the smallest table
+    var index = RecentIdIndex.of(8, Duration.ofSeconds(3600), ticker);
+    assertThat(index.capacity()).isEqualTo(8);
+    for (var i = 0; i < 8; i++) {
+      assertThat(index.add("event-" + i)).isTrue();
+      advance(Duration.ofSeconds(1));
+    }
+
+    assertThat(index.add("event-8")).isTrue();
+
+    assertThat(index.contains("event-0")).isFalse();
+    assertThat(IntStream.rangeClosed(1, 8)).allMatch(i -> index.contains("event-" + i));
+  }
+
+  @Test
+  void acceptsConcurrentAddsOfSameIdOnce() throws Exception {
+    var threads = 8;
+    var index = RecentIdIndex.of(1 << 16, Duration.ofSeconds(60));
+    try (var executor = Executors.newFixedThreadPool(threads)) {
+      for (var round = 0; round < 1000; round++) {
+        var id = "event-" + round;
+        var start = new CountDownLatch(1);
+        var results = new ArrayList<Future<Boolean>>();
+        for (var i = 0; i < threads; i++) {
+          results.add(executor.submit(() -> {
+            start.await();
+            return index.add(id);
+          }));
+        }
+        start.countDown();
+        var accepted = 0;
+        for (var result : results) {
+          if (result.get(10, TimeUnit.SECONDS)) {
+            accepted++;
+          }
+        }
+        assertThat(accepted).as(id).isEqualTo(1);
+      }
+    }
+  }
+
+  private void advance(Duration duration) {
+    nanos.addAndGet(duration.toNanos());
+  }
+}